@@ -0,0 +1,386 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Fetches and parses attachments on a bounded pool of lucene.extractionThreads
+ * threads, so the changes feed keeps moving while Tika works. Each
+ * attachment gets lucene.attachmentTimeout milliseconds and at most
+ * lucene.maxAttachmentBytes bytes. If lucene.extractionQueue attachments are
+ * already waiting, the calling thread does the extraction itself. That is
+ * the indexing thread, which is shared with other databases, so a full queue
+ * slows indexing everywhere down instead of buffering without bound.
+ *
+ * @author rnewson
+ */
+public final class AttachmentExtractor {
+
+    public static final AttachmentExtractor INSTANCE = new AttachmentExtractor();
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttachmentExtractor.class);
+
+    private static final class CappedInputStream extends FilterInputStream {
+
+        private final long max;
+
+        private long count;
+
+        private CappedInputStream(final InputStream in, final long max) {
+            super(in);
+            this.max = max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result != -1) {
+                count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int result = super.read(b, off, len);
+            if (result != -1) {
+                count(result);
+            }
+            return result;
+        }
+
+        private boolean isExceeded() {
+            return count > max;
+        }
+
+        private void count(final int n) throws IOException {
+            count += n;
+            if (isExceeded()) {
+                throw new IOException("attachment is larger than " + max + " bytes");
+            }
+        }
+
+    }
+
+    /**
+     * The fields extracted from one attachment. They are only added to the
+     * document they belong to by the thread that indexes it, as a document
+     * is not safe to change from several extraction threads at once.
+     */
+    public static final class Fields {
+
+        private final Document from;
+
+        private final Document to;
+
+        private Fields(final Document from, final Document to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private void apply() {
+            for (final IndexableField field : from) {
+                to.add(field);
+            }
+        }
+
+    }
+
+    private final AtomicLong extracted = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private final AtomicLong tooLarge = new AtomicLong();
+
+    private final AtomicLong unsupported = new AtomicLong();
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    private ThreadPoolExecutor executor;
+
+    private volatile int threads = 2;
+
+    private volatile int queueSize = 100;
+
+    private volatile long timeoutMillis = 60000;
+
+    private volatile long maxBytes = 100 * 1024 * 1024;
+
+    private AttachmentExtractor() {
+        timer = new ScheduledThreadPoolExecutor(1, threadFactory("couchdb-lucene-extraction-timer"));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public synchronized void setIni(final HierarchicalINIConfiguration ini) {
+        threads = Math.max(1, ini.getInt("lucene.extractionThreads", 2));
+        queueSize = Math.max(1, ini.getInt("lucene.extractionQueue", 100));
+        timeoutMillis = ini.getLong("lucene.attachmentTimeout", 60000);
+        maxBytes = ini.getLong("lucene.maxAttachmentBytes", 100 * 1024 * 1024);
+
+        // Built again on next use; queued extractions still run.
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Extracts the attachment into a field of the document. The returned
+     * future completes with the fields, or with null or exceptionally if
+     * extraction was skipped, failed or timed out; pass it to
+     * {@link #apply(Collection)} to add the fields to the document.
+     */
+    public CompletableFuture<Fields> extract(final Database database, final CouchDocument doc,
+                                           final String attachmentName, final String fieldName,
+                                           final Document out) throws JSONException {
+        final String id = doc.getId();
+        final JSONObject stub = doc.getAttachment(attachmentName);
+        final String digest = stub == null ? null : stub.optString("digest", null);
+        final String contentType = stub == null ? null : stub.optString("content_type", null);
+        if (stub != null && maxBytes > 0 && stub.optLong("length", 0) > maxBytes) {
+            tooLarge(null, id, attachmentName);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (stub != null && !Tika.INSTANCE.accepts(contentType)) {
+            unsupported.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final HttpUriRequest req = database.getAttachmentRequest(id, attachmentName);
+        final CompletableFuture<Document> fields = new CompletableFuture<>();
+
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                public void run() {
+                    if (fields.completeExceptionally(new TimeoutException())) {
+                        timedOut.incrementAndGet();
+                        LOG.warn("Extraction of " + id + "/" + attachmentName + " timed out after "
+                                + timeoutMillis + " ms.");
+                        req.abort();
+                    }
+                }
+            }, timeoutMillis, MILLISECONDS);
+            fields.whenComplete(new BiConsumer<Document, Throwable>() {
+                public void accept(final Document doc, final Throwable e) {
+                    timeout.cancel(false);
+                }
+            });
+        }
+
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                if (fields.isDone()) {
+                    return;
+                }
+                final Document result = new Document();
+                final ExtractedText cached = ExtractionCache.INSTANCE.get(digest);
+                if (cached != null) {
+                    cached.addFields(fieldName, result);
+                    fields.complete(result);
+                    return;
+                }
+                try {
+                    database.execute(req, handler(req, id, digest, contentType, attachmentName, fieldName, result));
+                    if (!fields.complete(result)) {
+                        // Timed out after the text was spooled.
+                        discard(result);
+                    }
+                } catch (final Exception e) {
+                    LOG.warn("Failed to fetch " + id + "/" + attachmentName, e);
+                    fields.completeExceptionally(e);
+                }
+            }
+        });
+
+        return fields.thenApply(new Function<Document, Fields>() {
+            public Fields apply(final Document doc) {
+                extracted.incrementAndGet();
+                return new Fields(doc, out);
+            }
+        });
+    }
+
+    /**
+     * Adds the fields of the completed extractions to their documents,
+     * skipping those that were skipped or failed. Must be called by the
+     * thread that owns the documents.
+     */
+    public static void apply(final Collection<CompletableFuture<Fields>> extractions) {
+        for (final CompletableFuture<Fields> extraction : extractions) {
+            if (extraction.isDone() && !extraction.isCompletedExceptionally()) {
+                final Fields fields = extraction.join();
+                if (fields != null) {
+                    fields.apply();
+                }
+            }
+        }
+    }
+
+    public JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("threads", threads);
+        final ThreadPoolExecutor executor = this.executor;
+        result.put("active", executor == null ? 0 : executor.getActiveCount());
+        result.put("queued", executor == null ? 0 : executor.getQueue().size());
+        result.put("extracted", extracted.get());
+        result.put("timed_out", timedOut.get());
+        result.put("too_large", tooLarge.get());
+        result.put("unsupported", unsupported.get());
+        result.put("cache", ExtractionCache.INSTANCE.status());
+        result.put("tika", Tika.INSTANCE.status());
+        return result;
+    }
+
+    /**
+     * @param stubContentType the content type of the attachment stub, used
+     *                        if the response has none.
+     */
+    private ResponseHandler<Void> handler(final HttpUriRequest req, final String id, final String digest,
+                                          final String stubContentType, final String attachmentName,
+                                          final String fieldName, final Document out) {
+        return new ResponseHandler<Void>() {
+
+            public Void handleResponse(final HttpResponse response) throws IOException {
+                final HttpEntity entity = response.getEntity();
+                final long max = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+                if (entity.getContentLength() > max) {
+                    tooLarge(req, id, attachmentName);
+                    return null;
+                }
+                final Header header = entity.getContentType();
+                final String contentType = header == null ? stubContentType : header.getValue();
+                if (!Tika.INSTANCE.accepts(contentType)) {
+                    unsupported.incrementAndGet();
+                    req.abort();
+                    return null;
+                }
+                final CappedInputStream in = new CappedInputStream(entity.getContent(), max);
+                final File spool = ExtractionCache.INSTANCE.newSpoolFile();
+                final JSONObject metadata;
+                try {
+                    final Writer text = ExtractedText.newWriter(spool);
+                    try {
+                        metadata = Tika.INSTANCE.extract(in, contentType, text);
+                    } finally {
+                        text.close();
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    spool.delete();
+                    throw e;
+                }
+                if (in.isExceeded() || metadata == null) {
+                    spool.delete();
+                    if (in.isExceeded()) {
+                        tooLarge(req, id, attachmentName);
+                    } else {
+                        // Tika gave up; closes the connection instead of reading the rest of the body.
+                        req.abort();
+                    }
+                    return null;
+                }
+                EntityUtils.consumeQuietly(entity);
+                final ExtractedText extracted = ExtractionCache.INSTANCE.put(digest,
+                        new ExtractedText(spool, metadata, true));
+                extracted.addFields(fieldName, out);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Deletes the spooled text of fields that will not be indexed.
+     */
+    private static void discard(final Document doc) {
+        for (final IndexableField field : doc) {
+            final Reader reader = field.readerValue();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    LOG.warn("Failed to discard " + field.name(), e);
+                }
+            }
+        }
+    }
+
+    private void tooLarge(final HttpUriRequest req, final String id, final String attachmentName) {
+        tooLarge.incrementAndGet();
+        LOG.warn("Not indexing " + id + "/" + attachmentName + ", it is larger than " + maxBytes + " bytes.");
+        // Closes the connection instead of reading the rest of the body.
+        if (req != null) {
+            req.abort();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    threadFactory("couchdb-lucene-extraction"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, name + "-" + counter.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+}
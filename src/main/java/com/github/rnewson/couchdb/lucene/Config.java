@@ -16,6 +16,8 @@
 
 package com.github.rnewson.couchdb.lucene;
 
+import com.github.rnewson.couchdb.lucene.couchdb.MetadataCache;
+import com.github.rnewson.couchdb.lucene.rhino.BudgetContextFactory;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
@@ -43,6 +45,14 @@ public final class Config {
                 .getClassLoader().getResource(CONFIG_FILE));
         this.configuration
                 .setReloadingStrategy(new FileChangedReloadingStrategy());
+        ThrottledMergeScheduler.setIni(this.configuration);
+        IndexingMemoryManager.setIni(this.configuration);
+        IndexShards.setIni(this.configuration);
+        MetadataCache.INSTANCE.setIni(this.configuration);
+        BudgetContextFactory.setIni(this.configuration);
+        AttachmentExtractor.INSTANCE.setIni(this.configuration);
+        ExtractionCache.INSTANCE.setIni(this.configuration);
+        Tika.INSTANCE.setIni(this.configuration);
     }
 
     public final HierarchicalINIConfiguration getConfiguration() {
@@ -44,8 +44,7 @@ import org.apache.lucene.util.BytesRef;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.mozilla.javascript.ClassShutter;
-import org.mozilla.javascript.Context;
+import org.json.JSONTokener;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -53,37 +52,74 @@ import java.io.*;
 import java.net.SocketException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
 
 import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
+    /**
+     * A document whose attachments are still being extracted.
+     */
+    private static final class Extraction {
+
+        /**
+         * The sequence the index can be committed at while this is pending.
+         */
+        private final UpdateSequence since;
+
+        private final Collection<Document> docs;
+
+        private final Collection<CompletableFuture<AttachmentExtractor.Fields>> pending;
+
+        private final CompletableFuture<Void> done;
+
+        private Extraction(final UpdateSequence since, final Collection<Document> docs,
+                           final Collection<CompletableFuture<AttachmentExtractor.Fields>> pending) {
+            this.since = since;
+            this.docs = docs;
+            this.pending = pending;
+            this.done = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]));
+        }
+
+    }
+
     private class IndexState {
 
-        private final DocumentConverter converter;
+        private final IndexFunction converter;
         private boolean readerDirty;
         private String etag;
 
         private final Analyzer analyzer;
         private UpdateSequence pending_seq;
-        private DirectoryReader reader;
-        private final IndexWriter writer;
+        private UpdateSequence processed_seq;
+        private final Map<String, Extraction> extractions = new LinkedHashMap<>();
+        private IndexReader reader;
+        private final IndexShards shards;
         private final Database database;
         private final View view;
+        private final Sort indexSort;
+        private final Quarantine quarantine;
 
-        public IndexState(final DocumentConverter converter,
-                          final IndexWriter writer, final Analyzer analyzer,
-                          final Database database, final View view) {
+        public IndexState(final IndexFunction converter,
+                          final IndexShards shards, final Analyzer analyzer,
+                          final Database database, final View view,
+                          final Quarantine quarantine) {
             this.converter = converter;
-            this.writer = writer;
+            this.quarantine = quarantine;
+            this.shards = shards;
             this.analyzer = analyzer;
             this.database = database;
             this.view = view;
+            this.indexSort = shards.getWriter(0).getConfig().getIndexSort();
         }
 
-        public synchronized DirectoryReader borrowReader(final boolean staleOk)
+        public synchronized IndexReader borrowReader(final boolean staleOk)
                 throws IOException, JSONException {
             blockForLatest(staleOk);
             if (reader == null) {
@@ -93,7 +129,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             if (reader != null) {
                 reader.decRef();
             }
-            reader = DirectoryReader.open(writer, !staleOk, false);
+            reader = shards.openReader(!staleOk);
             if (readerDirty) {
                 etag = newEtag();
                 readerDirty = false;
@@ -105,7 +141,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
         public IndexSearcher borrowSearcher(final boolean staleOk)
                 throws IOException, JSONException {
-            return new IndexSearcher(borrowReader(staleOk));
+            return shards.newSearcher(borrowReader(staleOk));
         }
 
         public void returnReader(final IndexReader reader) throws IOException {
@@ -132,8 +168,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         private synchronized void close() throws IOException {
             if (reader != null)
                 reader.close();
-            if (writer != null)
-                writer.rollback();
+            shards.rollback();
         }
 
         private synchronized String getEtag() {
@@ -141,7 +176,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         }
 
         public UUID getUuid() throws JSONException, IOException {
-            return database.getUuid();
+            return MetadataCache.INSTANCE.getUuid(database);
         }
 
         public String getDigest() {
@@ -162,6 +197,9 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             }
             final UpdateSequence latest = database.getLastSequence();
             synchronized (this) {
+                if (pending_seq.isEarlierThan(latest)) {
+                    scheduler.wakeup(DatabaseIndexer.this);
+                }
                 long timeout = getSearchTimeout();
                 while (pending_seq.isEarlierThan(latest)) {
                     try {
@@ -183,16 +221,68 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             notifyAll();
         }
 
-        @Override
-        public String toString() {
-            return writer.getDirectory().toString();
+        /**
+         * Records that all changes up to seq were handled. The index only
+         * counts as caught up to the change before the oldest document that
+         * is still waiting for its attachments.
+         */
+        private void setProcessedSequence(final UpdateSequence seq) {
+            processed_seq = seq;
+            updatePendingSequence();
         }
-    }
 
-    private final class RestrictiveClassShutter implements ClassShutter {
+        private void updatePendingSequence() {
+            setPendingSequence(extractions.isEmpty() ? processed_seq
+                    : extractions.values().iterator().next().since);
+        }
 
-        public boolean visibleToScripts(final String fullClassName) {
-            return false;
+        private void addExtraction(final String id, final Collection<Document> docs,
+                                   final Collection<CompletableFuture<AttachmentExtractor.Fields>> pending) {
+            final Extraction extraction = new Extraction(processed_seq, docs, pending);
+            extractions.put(id, extraction);
+            extraction.done.whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(final Void result, final Throwable e) {
+                    scheduler.wakeup(DatabaseIndexer.this);
+                }
+            });
+        }
+
+        /**
+         * Indexes the documents whose attachments are done.
+         */
+        private void applyExtractions() throws IOException {
+            boolean applied = false;
+            final Iterator<Entry<String, Extraction>> it = extractions.entrySet().iterator();
+            while (it.hasNext()) {
+                final Entry<String, Extraction> entry = it.next();
+                if (entry.getValue().done.isDone()) {
+                    AttachmentExtractor.apply(entry.getValue().pending);
+                    update(entry.getKey(), entry.getValue().docs);
+                    applied = true;
+                    it.remove();
+                }
+            }
+            if (applied) {
+                updatePendingSequence();
+            }
+        }
+
+        /**
+         * Indexes the documents of one CouchDB document. A document that the
+         * IndexWriter rejects is logged and skipped, the writer stays usable.
+         */
+        private void update(final String id, final Collection<Document> docs) throws IOException {
+            try {
+                shards.update(id, docs);
+            } catch (final IllegalArgumentException e) {
+                logger.warn(id + " could not be indexed in " + this + ": " + e.getMessage());
+            }
+            readerDirty = true;
+        }
+
+        @Override
+        public String toString() {
+            return shards.toString();
         }
     }
 
@@ -216,9 +306,21 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
     private final HttpClient client;
 
-    private boolean closed;
+    private volatile boolean closed;
 
-    private Context context;
+    private volatile boolean evicting;
+
+    private boolean stopped;
+
+    private volatile boolean behind;
+
+    private volatile boolean idle;
+
+    private long lastChange = now();
+
+    private volatile long lastAccess = now();
+
+    private boolean initialized;
 
     private final Database database;
 
@@ -228,11 +330,17 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
     private final CountDownLatch latch = new CountDownLatch(1);
 
+    private final CountDownLatch closeLatch = new CountDownLatch(1);
+
     private final Logger logger;
 
-    private final Map<String, View> paths = new HashMap<>();
+    /**
+     * The index of each "ddoc/view" path, so requests find their index with
+     * a single lookup.
+     */
+    private final Map<String, IndexState> routes = new ConcurrentHashMap<>();
 
-    private HttpUriRequest req;
+    private volatile HttpUriRequest req;
 
     private final File root;
 
@@ -245,15 +353,19 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
     private final HierarchicalINIConfiguration ini;
 
+    private final IndexingScheduler scheduler;
+
     public DatabaseIndexer(final HttpClient client, final File root,
-                           final Database database, final HierarchicalINIConfiguration ini)
+                           final Database database, final HierarchicalINIConfiguration ini,
+                           final IndexingScheduler scheduler)
             throws IOException, JSONException {
         this.client = client;
         this.root = root;
         this.database = database;
         this.ini = ini;
+        this.scheduler = scheduler;
         this.logger = LoggerFactory.getLogger(DatabaseIndexer.class.getName() + "."
-                + database.getInfo().getName());
+                + MetadataCache.INSTANCE.getInfo(database).getName());
     }
 
     public void admin(final HttpServletRequest req,
@@ -261,11 +373,11 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         final IndexState state = getState(req, resp);
         if (state == null)
             return;
-        final String command = new PathParts(req).getCommand();
+        final String command = PathParts.of(req).getCommand();
 
         if ("_expunge".equals(command)) {
             logger.info("Expunging deletes from " + state);
-            state.writer.forceMergeDeletes(false);
+            state.shards.forceMergeDeletes();
             resp.setStatus(202);
             ServletUtils.sendJsonSuccess(req, resp);
             return;
@@ -273,7 +385,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
         if ("_optimize".equals(command)) {
             logger.info("Optimizing " + state);
-            state.writer.forceMerge(1, false);
+            state.shards.forceMerge(1);
             resp.setStatus(202);
             ServletUtils.sendJsonSuccess(req, resp);
             return;
@@ -282,105 +394,242 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         ServletUtils.sendJsonError(req, resp, 400, "bad_request");
     }
 
-    public void awaitInitialization() {
+    /**
+     * Asks the indexer to commit and close all indexes on its next run. The
+     * caller should wait in {@link #awaitClose(long)} before reopening the
+     * database.
+     */
+    public void evict() {
+        evicting = true;
+        final HttpUriRequest req = this.req;
+        if (req != null) {
+            req.abort();
+        }
+    }
+
+    public void touch() {
+        lastAccess = now();
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * @param timeoutMillis how long to wait, 0 means forever.
+     * @return true if the indexer closed within the timeout.
+     */
+    public boolean awaitClose(final long timeoutMillis) {
         try {
-            latch.await();
+            if (timeoutMillis == 0) {
+                closeLatch.await();
+                return true;
+            }
+            return closeLatch.await(timeoutMillis, MILLISECONDS);
         } catch (final InterruptedException e) {
-            // Ignore.
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
+    /**
+     * @param timeoutMillis how long to wait, 0 means forever.
+     * @return false if initialization did not finish in time.
+     */
+    public boolean awaitInitialization(final long timeoutMillis) {
+        try {
+            if (timeoutMillis == 0) {
+                latch.await();
+                return true;
+            }
+            return latch.await(timeoutMillis, MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Reads the "results" of the changes feed one row at a time, so only
+     * the change being indexed is held in memory.
+     */
     public Void handleResponse(final HttpResponse response)
             throws ClientProtocolException, IOException {
         final HttpEntity entity = response.getEntity();
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        final Reader reader = new BufferedReader(new InputStreamReader(
                 entity.getContent(), "UTF-8"));
-        String line;
-        loop:
-        while ((line = reader.readLine()) != null) {
-            maybeCommit();
+        try {
+            final JSONTokener tokener = new JSONTokener(reader);
+            if (tokener.nextClean() != '{') {
+                throw tokener.syntaxError("A JSONObject text must begin with '{'");
+            }
+            int rows = 0;
+            UpdateSequence lastSeq = null;
+            long pending = 0;
+            char c = tokener.nextClean();
+            while (c != '}') {
+                tokener.back();
+                final String key = tokener.nextValue().toString();
+                if (tokener.nextClean() != ':') {
+                    throw tokener.syntaxError("Expected a ':' after a key");
+                }
+                if ("results".equals(key)) {
+                    rows = indexChanges(tokener);
+                    if (rows < 0) {
+                        return null;
+                    }
+                } else {
+                    final Object value = tokener.nextValue();
+                    if ("error".equals(key)) {
+                        logger.warn("Indexing stopping due to error: " + value);
+                        stopped = true;
+                        return null;
+                    }
+                    if ("last_seq".equals(key)) {
+                        lastSeq = UpdateSequence.parseUpdateSequence(value.toString());
+                    } else if ("pending".equals(key) && value instanceof Number) {
+                        pending = ((Number) value).longValue();
+                    }
+                }
+                c = tokener.nextClean();
+                if (c == ',') {
+                    c = tokener.nextClean();
+                } else if (c != '}') {
+                    throw tokener.syntaxError("Expected a ',' or '}'");
+                }
+            }
+            if (lastSeq == null) {
+                throw new JSONException("Changes feed has no last_seq");
+            }
+            idle = rows == 0;
+            if (rows > 0) {
+                lastChange = now();
+            }
+            since = lastSeq;
+            behind = rows >= getBatchSize() || pending > 0;
+        } catch (final JSONException e) {
+            logger.error("JSON exception in changes loop", e);
+            stopped = true;
+        } finally {
+            reader.close();
+        }
+        return null;
+    }
 
-            // Heartbeat.
-            if (line.length() == 0) {
-                logger.trace("heartbeat");
-                continue loop;
+    /**
+     * Indexes the rows of the "results" array.
+     *
+     * @return the number of rows, or -1 if indexing should stop.
+     */
+    private int indexChanges(final JSONTokener tokener) throws IOException, JSONException {
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        int rows = 0;
+        char c = tokener.nextClean();
+        while (c != ']') {
+            tokener.back();
+            final Object row = tokener.nextValue();
+            if (!(row instanceof JSONObject)) {
+                throw tokener.syntaxError("Expected a change");
+            }
+            if (rows++ == 0) {
+                // The update_seq has moved on and design documents may have changed.
+                MetadataCache.INSTANCE.invalidate(database);
+            }
+            if (evicting) {
+                return -1;
+            }
+            maybeCommit();
+            if (!indexChange((JSONObject) row)) {
+                stopped = true;
+                return -1;
+            }
+            c = tokener.nextClean();
+            if (c == ',') {
+                c = tokener.nextClean();
+            } else if (c != ']') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
             }
+        }
+        return rows;
+    }
 
+    /**
+     * @return false if indexing should stop.
+     */
+    private boolean indexChange(final JSONObject json) throws IOException, JSONException {
+        final UpdateSequence seq = UpdateSequence.parseUpdateSequence(json.getString("seq"));
+        final String id = json.getString("id");
+        CouchDocument doc;
+        if (!json.isNull("doc")) {
+            doc = new CouchDocument(json.getJSONObject("doc"));
+        } else {
+            // include_docs=true doesn't work prior to 0.11.
             try {
-                final JSONObject json = new JSONObject(line);
-
-                if (json.has("error")) {
-                    logger.warn("Indexing stopping due to error: " + json);
-                    break loop;
+                doc = database.getDocument(id);
+            } catch (final HttpResponseException e) {
+                switch (e.getStatusCode()) {
+                    case HttpStatus.SC_NOT_FOUND:
+                        doc = CouchDocument.deletedDocument(id);
+                        break;
+                    default:
+                        logger.warn("Failed to fetch " + id);
+                        return false;
                 }
+            }
+        }
 
-                if (json.has("last_seq")) {
-                    logger.info("End of changes detected.");
-                    break loop;
-                }
+        if (id.startsWith("_design")) {
+            if (seq.isLaterThan(ddoc_seq)) {
+                logger.info("Exiting due to design document change.");
+                return false;
+            }
+        }
 
-                final UpdateSequence seq = UpdateSequence.parseUpdateSequence(json.getString("seq"));
-                final String id = json.getString("id");
-                CouchDocument doc;
-                if (!json.isNull("doc")) {
-                    doc = new CouchDocument(json.getJSONObject("doc"));
-                } else {
-                    // include_docs=true doesn't work prior to 0.11.
+        if (doc.isDeleted()) {
+            for (final IndexState state : states.values()) {
+                state.shards.delete(id);
+                state.quarantine.remove(id);
+                state.extractions.remove(id);
+                state.setProcessedSequence(seq);
+                state.readerDirty = true;
+            }
+        } else {
+            for (final Entry<View, IndexState> entry : states.entrySet()) {
+                final View view = entry.getKey();
+                final IndexState state = entry.getValue();
+
+                if (seq.isLaterThan(state.processed_seq)) {
+                    Collection<Document> docs = Collections.emptyList();
+                    final List<CompletableFuture<AttachmentExtractor.Fields>> pending = new ArrayList<>();
                     try {
-                        doc = database.getDocument(id);
-                    } catch (final HttpResponseException e) {
-                        switch (e.getStatusCode()) {
-                            case HttpStatus.SC_NOT_FOUND:
-                                doc = CouchDocument.deletedDocument(id);
-                                break;
-                            default:
-                                logger.warn("Failed to fetch " + id);
-                                break loop;
+                        if (!state.quarantine.contains(id, doc.getRev())) {
+                            docs = state.converter.convert(doc, view
+                                    .getDefaultSettings(), database, pending);
+                            state.quarantine.remove(id);
                         }
+                    } catch (final BudgetExceededException e) {
+                        logger.warn(id + " " + e.getMessage() + ", quarantined in " + state);
+                        state.quarantine.add(id, doc.getRev());
+                    } catch (final Exception e) {
+                        logger.warn(id + " caused " + e.getMessage());
+                        return true;
                     }
-                }
-
-                if (id.startsWith("_design")) {
-                    if (seq.isLaterThan(ddoc_seq)) {
-                        logger.info("Exiting due to design document change.");
-                        break loop;
-                    }
-                }
-
-                if (doc.isDeleted()) {
-                    for (final IndexState state : states.values()) {
-                        state.writer.deleteDocuments(new Term("_id", id));
-                        state.setPendingSequence(seq);
-                        state.readerDirty = true;
-                    }
-                } else {
-                    for (final Entry<View, IndexState> entry : states.entrySet()) {
-                        final View view = entry.getKey();
-                        final IndexState state = entry.getValue();
-
-                        if (seq.isLaterThan(state.pending_seq)) {
-                            final Collection<Document> docs;
-                            try {
-                                docs = state.converter.convert(doc, view
-                                        .getDefaultSettings(), database);
-                            } catch (final Exception e) {
-                                logger.warn(id + " caused " + e.getMessage());
-                                continue loop;
-                            }
 
-                            state.writer.updateDocuments(new Term("_id", id), docs);
-                            state.setPendingSequence(seq);
-                            state.readerDirty = true;
-                        }
+                    // A newer revision replaces one still waiting for its attachments.
+                    state.extractions.remove(id);
+                    if (pending.isEmpty()) {
+                        state.update(id, docs);
+                    } else {
+                        state.addExtraction(id, docs, pending);
                     }
+                    state.setProcessedSequence(seq);
                 }
-            } catch (final JSONException e) {
-                logger.error("JSON exception in changes loop", e);
-                break loop;
             }
         }
-        req.abort();
-        return null;
+        IndexingMemoryManager.maybeFlush();
+        return true;
     }
 
     public void info(final HttpServletRequest req,
@@ -388,16 +637,56 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         final IndexState state = getState(req, resp);
         if (state == null)
             return;
-        final DirectoryReader reader = state.borrowReader(true);
+        final IndexReader reader = state.borrowReader(true);
         try {
+            final List<DirectoryReader> shardReaders = IndexShards.shardReaders(reader);
+            final JSONArray shards = new JSONArray();
+            final JSONArray merges = new JSONArray();
+            boolean current = true;
+            long diskSize = 0;
+            long version = 0;
+            UpdateSequence updateSeq = null;
+            for (int i = 0; i < shardReaders.size(); i++) {
+                final DirectoryReader shardReader = shardReaders.get(i);
+                final IndexWriter writer = state.shards.getWriter(i);
+                final UpdateSequence seq = getUpdateSequence(shardReader.getIndexCommit().getUserData());
+                final JSONObject shard = new JSONObject();
+                shard.put("current", shardReader.isCurrent());
+                shard.put("disk_size", Utils.directorySize(shardReader.directory()));
+                shard.put("doc_count", shardReader.numDocs());
+                shard.put("doc_del_count", shardReader.numDeletedDocs());
+                shard.put("segments", shardReader.leaves().size());
+                shard.put("merges", ThrottledMergeScheduler.activeMerges(writer.getDirectory()));
+                shard.put("ram_bytes_used", writer.ramBytesUsed());
+                shard.put("update_seq", seq);
+                shard.put("version", shardReader.getVersion());
+                shards.put(shard);
+                final JSONArray shardMerges = shard.getJSONArray("merges");
+                for (int j = 0; j < shardMerges.length(); j++) {
+                    merges.put(shardMerges.get(j));
+                }
+                current &= shardReader.isCurrent();
+                diskSize += shard.getLong("disk_size");
+                version += shardReader.getVersion();
+                updateSeq = updateSeq == null || seq.isEarlierThan(updateSeq) ? seq : updateSeq;
+            }
+
             final JSONObject result = new JSONObject();
-            result.put("current", reader.isCurrent());
-            result.put("disk_size", Utils.directorySize(reader.directory()));
+            result.put("current", current);
+            result.put("disk_size", diskSize);
             result.put("doc_count", reader.numDocs());
             result.put("doc_del_count", reader.numDeletedDocs());
             result.put("uuid", state.getUuid());
             result.put("digest", state.getDigest());
-            result.put("update_seq", getUpdateSequence(reader.getIndexCommit().getUserData()));
+            if (state.indexSort != null) {
+                result.put("index_sort", CustomQueryParser.toJSON(state.indexSort.getSort()));
+            }
+            result.put("codec", state.view.getCodecProfile().toJSON());
+            result.put("merge_policy", state.view.getMergeProfile(ini).toJSON());
+            result.put("merges", merges);
+            result.put("ram_bytes_used", state.shards.ramBytesUsed());
+            result.put("quarantine", state.quarantine.toJSON());
+            result.put("update_seq", updateSeq);
             final JSONArray fields = new JSONArray();
             for (LeafReaderContext leaf : reader.leaves()) {
                 for (FieldInfo info : leaf.reader().getFieldInfos()) {
@@ -410,8 +699,11 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                 }
             }
             result.put("fields", fields);
-            result.put("version", reader.getVersion());
+            result.put("version", version);
             result.put("ref_count", reader.getRefCount());
+            if (shards.length() > 1) {
+                result.put("shards", shards);
+            }
 
             final JSONObject info = new JSONObject();
             info.put("code", 200);
@@ -429,45 +721,88 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         }
     }
 
+    /**
+     * Indexes one batch of changes and returns. The first call initializes
+     * the indexes. Call repeatedly until {@link #isClosed()}; if
+     * {@link #isBehind()} is true there are more changes waiting.
+     */
     public void run() {
         if (closed) {
-            throw new IllegalStateException("closed!");
+            return;
         }
 
-        try {
-            init();
-        } catch (final Exception e) {
-            logger.warn("Exiting after init() raised exception.", e);
-            close();
-            return;
+        if (!initialized) {
+            try {
+                init();
+            } catch (final Exception e) {
+                logger.warn("Exiting after init() raised exception.", e);
+                close();
+                return;
+            }
+            initialized = true;
+            logger.info("Indexing from update_seq " + since);
         }
 
+        behind = false;
         try {
             try {
+                idle = true;
+                if (!evicting) {
+                    req = database.getChangesRequest(since, getBatchSize());
+                    client.execute(req, this);
+                }
+                for (final IndexState state : states.values()) {
+                    state.applyExtractions();
+                }
+                maybeCommit();
                 final long changes_timeout = ini.getLong("lucene.changes_timeout", -1);
-                req = database.getChangesRequest(since, changes_timeout);
-                logger.info("Indexing from update_seq " + since);
-                client.execute(req, this);
+                if (changes_timeout > -1 && now() - lastChange >= MILLISECONDS.toNanos(changes_timeout)) {
+                    logger.info("No changes for " + changes_timeout + "ms, closing.");
+                    evicting = true;
+                }
             } finally {
-                close();
+                if (evicting) {
+                    commitAll();
+                }
+                if (evicting || stopped) {
+                    close();
+                }
             }
         } catch (final SocketException e) {
             // Ignored because req.abort() does this.
+            close();
         } catch (final Exception e) {
             logger.warn("Exiting due to exception.", e);
             close();
         }
     }
 
+    public boolean isBehind() {
+        return behind;
+    }
+
+    /**
+     * @return true if the last run found no new changes.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
     public void search(final HttpServletRequest req,
                        final HttpServletResponse resp) throws IOException, JSONException {
         final IndexState state = getState(req, resp);
         if (state == null)
             return;
+        final int threshold = getIntParameter(req, "total_hits_threshold", Integer.MAX_VALUE);
+        if (threshold <= 0) {
+            ServletUtils.sendJsonError(req, resp, 400, "total_hits_threshold must be positive.");
+            return;
+        }
         final IndexSearcher searcher = state.borrowSearcher(isStaleOk(req));
         final String etag = state.getEtag();
         final FastVectorHighlighter fvh = new FastVectorHighlighter(true, true);
         final JSONArray result = new JSONArray();
+        ThrottledMergeScheduler.searchStarted();
         try {
             if (state.notModified(req)) {
                 resp.setStatus(304);
@@ -518,20 +853,32 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                             .getParameter("sort"));
                     final int skip = getIntParameter(req, "skip", 0);
 
-                    final Set<String> fieldsToLoad;
-                    if (req.getParameter("include_fields") == null) {
-                        fieldsToLoad = null;
-                    } else {
-                        final String[] fields = Utils.splitOnCommas(
-                                req.getParameter("include_fields"));
-                        final List<String> list = Arrays.asList(fields);
-                        fieldsToLoad = new HashSet<>(list);
+                    // Count matches only (if requested).
+                    if (limit == 0 || getBooleanParameter(req, "count")) {
+                        final int count = HitCounter.count(searcher, q, threshold);
+                        stopWatch.lap("search");
+
+                        queryRow.put("skip", skip);
+                        queryRow.put("limit", 0);
+                        queryRow.put("total_rows", count);
+                        if (threshold != Integer.MAX_VALUE) {
+                            queryRow.put("total_rows_exact", count < threshold);
+                        }
+                        queryRow.put("search_duration", stopWatch
+                                .getElapsed("search"));
+                        queryRow.put("rows", new JSONArray());
+                        result.put(queryRow);
+                        continue;
                     }
 
+                    final FieldLoader fieldLoader = new FieldLoader(req.getParameter("include_fields"));
+
+                    SortedSearch sorted = null;
                     if (sort == null) {
                         td = searcher.search(q, skip + limit);
                     } else {
-                        td = searcher.search(q, skip + limit, sort);
+                        sorted = SortedSearch.search(searcher, q, sort, state.indexSort, skip + limit);
+                        td = sorted.getTopDocs();
                     }
                     stopWatch.lap("search");
 
@@ -541,12 +888,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                     final JSONArray rows = new JSONArray();
                     final String[] fetch_ids = new String[max];
                     for (int i = skip; i < skip + max; i++) {
-                        final Document doc;
-                        if (fieldsToLoad == null) {
-                            doc = searcher.doc(td.scoreDocs[i].doc);
-                        } else {
-                            doc = searcher.doc(td.scoreDocs[i].doc, fieldsToLoad);
-                        }
+                        final Document doc = fieldLoader.load(searcher, td.scoreDocs[i].doc);
 
                         final JSONObject row = new JSONObject();
                         final JSONObject fields = new JSONObject();
@@ -636,6 +978,9 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                     queryRow.put("skip", skip);
                     queryRow.put("limit", limit);
                     queryRow.put("total_rows", td.totalHits);
+                    if (sorted != null && sorted.isEarly()) {
+                        queryRow.put("total_rows_exact", sorted.isTotalExact());
+                    }
                     queryRow.put("search_duration", stopWatch
                             .getElapsed("search"));
                     queryRow.put("fetch_duration", stopWatch
@@ -654,6 +999,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                     + e.getMessage());
             return;
         } finally {
+            ThrottledMergeScheduler.searchFinished();
             state.returnSearcher(searcher);
         }
 
@@ -701,11 +1047,9 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             }
         }
         states.clear();
-        if (context != null) {
-            Context.exit();
-            context = null;
-        }
+        routes.clear();
         latch.countDown();
+        closeLatch.countDown();
     }
 
     public boolean isClosed() {
@@ -717,11 +1061,10 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             final View view = entry.getKey();
             final IndexState state = entry.getValue();
 
-            if (state.pending_seq.isLaterThan(getUpdateSequence(state.writer))) {
+            if (state.pending_seq.isLaterThan(getUpdateSequence(state.shards))) {
                 final Map<String, String> userData = new HashMap<>();
                 userData.put("last_seq", state.pending_seq.toString());
-                state.writer.setCommitData(userData);
-                state.writer.commit();
+                state.shards.commit(userData);
                 logger.info(view + " now at update_seq " + state.pending_seq);
             }
         }
@@ -741,15 +1084,10 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
     private IndexState getState(final HttpServletRequest req,
                                 final HttpServletResponse resp) throws IOException, JSONException {
-        final View view = paths.get(toPath(req));
-        if (view == null) {
-            ServletUtils.sendJsonError(req, resp, 400, "no_such_view");
-            return null;
-        }
-
-        final IndexState result = states.get(view);
+        final PathParts parts = PathParts.of(req);
+        final IndexState result = routes.get(toPath(parts.getDesignDocumentName(), parts.getViewName()));
         if (result == null) {
-            ServletUtils.sendJsonError(req, resp, 400, "no_such_state");
+            ServletUtils.sendJsonError(req, resp, 400, closed ? "no_such_state" : "no_such_view");
         }
         return result;
     }
@@ -763,8 +1101,17 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return getUpdateSequence(latest.getUserData());
     }
 
-    private UpdateSequence getUpdateSequence(final IndexWriter writer) throws IOException {
-        return getUpdateSequence(writer.getDirectory());
+    /**
+     * @return the earliest committed sequence of the shards; they are
+     * committed one after the other.
+     */
+    private UpdateSequence getUpdateSequence(final IndexShards shards) throws IOException {
+        UpdateSequence result = null;
+        for (int i = 0; i < shards.size(); i++) {
+            final UpdateSequence seq = getUpdateSequence(shards.getWriter(i).getDirectory());
+            result = result == null || seq.isEarlierThan(result) ? seq : result;
+        }
+        return result;
     }
 
     private UpdateSequence getUpdateSequence(final Map<String, String> userData) {
@@ -774,48 +1121,64 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return UpdateSequence.START;
     }
 
-    private void init() throws IOException, JSONException {
-        this.uuid = database.getOrCreateUuid();
-
-        this.context = Context.enter();
-        context.setClassShutter(new RestrictiveClassShutter());
-        context.setOptimizationLevel(9);
+    private void init() throws IOException, JSONException, ParseException {
+        this.uuid = MetadataCache.INSTANCE.getOrCreateUuid(database);
 
-        this.ddoc_seq = database.getInfo().getUpdateSequence();
+        // The views must match the current design documents, not a cached copy.
+        MetadataCache.INSTANCE.invalidate(database);
+        final MetadataCache.Snapshot snapshot = MetadataCache.INSTANCE.getSnapshot(database);
+        this.ddoc_seq = snapshot.getInfo().getUpdateSequence();
         this.since = null;
 
-        for (final DesignDocument ddoc : database.getAllDesignDocuments()) {
+        for (final DesignDocument ddoc : snapshot.getAllDesignDocuments()) {
             for (final Entry<String, View> entry : ddoc.getAllViews()
                     .entrySet()) {
                 final String name = entry.getKey();
                 final View view = entry.getValue();
-                paths.put(toPath(ddoc.getId(), name), view);
-
-                if (!states.containsKey(view)) {
-                    final Directory dir = FSDirectory.open(viewDir(view, true).toPath(),
-                            new SingleInstanceLockFactory());
-                    final UpdateSequence seq = getUpdateSequence(dir);
+                IndexState state = states.get(view);
+                if (state == null) {
+                    final File viewDir = viewDir(view, true);
+                    final File[] shardDirs = IndexShards.shardDirs(viewDir, view.getShards());
+                    final IndexWriter[] writers = new IndexWriter[shardDirs.length];
+                    try {
+                        for (int i = 0; i < shardDirs.length; i++) {
+                            shardDirs[i].mkdirs();
+                            final Directory dir = FSDirectory.open(shardDirs[i].toPath(),
+                                    new SingleInstanceLockFactory());
+                            writers[i] = newWriter(dir, view);
+                        }
+                    } catch (final Exception e) {
+                        for (final IndexWriter writer : writers) {
+                            if (writer != null) {
+                                IndexingMemoryManager.unregister(writer);
+                                writer.rollback();
+                            }
+                        }
+                        throw e;
+                    }
+                    final IndexShards shards = new IndexShards(writers);
+                    final UpdateSequence seq = getUpdateSequence(shards);
                     if (since == null) {
                         since = seq;
                     }
                     since = seq.isEarlierThan(since) ? seq : since;
-                    logger.debug(dir + " bumped since to " + since);
+                    logger.debug(shards + " bumped since to " + since);
 
-                    final DocumentConverter converter = new DocumentConverter(
-                            context, view);
-                    final IndexWriter writer = newWriter(dir, view.getAnalyzer());
+                    final IndexFunction converter = IndexFunctionEngines.get(view.getEngine())
+                            .compile(view);
 
-                    final IndexState state = new IndexState(converter, writer,
-                            view.getAnalyzer(), database, view);
-                    state.setPendingSequence(seq);
+                    state = new IndexState(converter, shards,
+                            view.getAnalyzer(), database, view, new Quarantine(viewDir));
+                    state.setProcessedSequence(seq);
                     states.put(view, state);
                 }
+                routes.put(toPath(ddoc.getId(), name), state);
             }
         }
         if (since == null) {
             since = UpdateSequence.START;
         }
-        logger.debug("paths: " + paths);
+        logger.debug("paths: " + routes.keySet());
 
         this.lastCommit = now();
         latch.countDown();
@@ -831,14 +1194,24 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         }
     }
 
-    private IndexWriter newWriter(final Directory dir, final Analyzer analyzer) throws IOException {
-        final IndexWriterConfig config = new IndexWriterConfig(analyzer);
+    private IndexWriter newWriter(final Directory dir, final View view)
+            throws IOException, JSONException, ParseException {
+        final IndexWriterConfig config = new IndexWriterConfig(view.getAnalyzer());
         config.setUseCompoundFile(ini.getBoolean("lucene.useCompoundFile",
                 false));
         config.setRAMBufferSizeMB(ini.getDouble("lucene.ramBufferSizeMB",
-                IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB));
+                IndexingMemoryManager.getBudgetMB()));
+        config.setCodec(view.getCodecProfile().toCodec());
+        config.setMergePolicy(view.getMergeProfile(ini).toMergePolicy());
+        config.setMergeScheduler(new ThrottledMergeScheduler());
+        final Sort indexSort = CustomQueryParser.toSort(view.getIndexSort());
+        if (indexSort != null) {
+            config.setIndexSort(indexSort);
+        }
 
-        return new IndexWriter(dir, config);
+        final IndexWriter result = new IndexWriter(dir, config);
+        IndexingMemoryManager.register(result);
+        return result;
     }
 
     private File viewDir(final View view, final boolean mkdirs)
@@ -846,6 +1219,10 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return viewDir(root, uuid, view.getDigest(), mkdirs);
     }
 
+    private int getBatchSize() {
+        return max(1, ini.getInt("lucene.batchSize", 1000));
+    }
+
     private long getSearchTimeout() {
         return ini.getLong("lucene.timeout", 5000);
     }
@@ -856,11 +1233,6 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return SECONDS.toNanos(commitSeconds);
     }
 
-    private String toPath(final HttpServletRequest req) {
-        final PathParts parts = new PathParts(req);
-        return toPath(parts.getDesignDocumentName(), parts.getViewName());
-    }
-
     private static String toPath(final String ddoc, final String view) {
         return ddoc + "/" + view;
     }
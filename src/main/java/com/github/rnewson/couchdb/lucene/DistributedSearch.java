@@ -0,0 +1,459 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.ServletUtils;
+import com.github.rnewson.couchdb.lucene.util.StopWatch;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Runs a search on every couchdb-lucene node in lucene.peers, in parallel,
+ * and merges the results as if they came from a single index. Each peer is
+ * asked for its first skip + limit hits; the hits are merged by score or by
+ * the requested sort and skip and limit are applied to the merged list.
+ *
+ * A peer that fails or does not answer within lucene.peerTimeout
+ * milliseconds fails the search with a 502, unless partial results are
+ * allowed by lucene.peerPartialResults or the partial=true parameter, in
+ * which case the response says which peers are missing.
+ *
+ * Peers are called from a pool of lucene.peerThreads threads, one per peer
+ * and search. A search that cannot get a thread for every peer fails with a
+ * 503 instead of waiting.
+ *
+ * @author rnewson
+ */
+public final class DistributedSearch {
+
+    /**
+     * Set on requests to peers so they search only their own indexes.
+     */
+    public static final String LOCAL = "local";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DistributedSearch.class);
+
+    /**
+     * Reads a peer's search response as one row per query.
+     */
+    private static final ResponseHandler<JSONArray> HANDLER = new ResponseHandler<JSONArray>() {
+        public JSONArray handleResponse(final HttpResponse response) throws IOException {
+            final String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8).trim();
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                throw new PeerException(status, body);
+            }
+            try {
+                return body.startsWith("[") ? new JSONArray(body) : new JSONArray().put(new JSONObject(body));
+            } catch (final JSONException e) {
+                throw new IOException("Invalid response: " + e.getMessage());
+            }
+        }
+    };
+
+    private static final class PeerException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private PeerException(final int status, final String body) {
+            super("status " + status + ": " + body);
+            this.status = status;
+        }
+
+    }
+
+    private static final class Peer {
+
+        private final String url;
+
+        private final HttpPost post;
+
+        private Future<JSONArray> future;
+
+        private JSONArray result;
+
+        private String failure;
+
+        private int status;
+
+        private Peer(final String url, final HttpPost post) {
+            this.url = url;
+            this.post = post;
+        }
+
+    }
+
+    private final HttpClient client;
+
+    private final HierarchicalINIConfiguration ini;
+
+    private final ThreadPoolExecutor executor;
+
+    public DistributedSearch(final HttpClient client, final HierarchicalINIConfiguration ini) {
+        this.client = client;
+        this.ini = ini;
+        final int threads = Math.max(1, ini.getInt("lucene.peerThreads", 64));
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, "couchdb-lucene-peer-" + counter.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return true if peers are configured and the request is a search
+     * that should be sent to them.
+     */
+    public boolean isDistributed(final HttpServletRequest req) {
+        return getPeers().size() > 0
+                && req.getParameter("q") != null
+                && !ServletUtils.getBooleanParameter(req, LOCAL)
+                && !ServletUtils.getBooleanParameter(req, "rewrite");
+    }
+
+    public void search(final HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException, JSONException {
+        final int limit = ServletUtils.getIntParameter(req, "limit", ini.getInt("lucene.limit", 25));
+        final int skip = ServletUtils.getIntParameter(req, "skip", 0);
+        final boolean count = limit == 0 || ServletUtils.getBooleanParameter(req, "count");
+        final Sort sort;
+        try {
+            sort = CustomQueryParser.toSort(req.getParameter("sort"));
+        } catch (final ParseException e) {
+            ServletUtils.sendJsonError(req, resp, 400, "Bad sort syntax: " + e.getMessage());
+            return;
+        }
+        final boolean partialOk = req.getParameter("partial") != null
+                ? ServletUtils.getBooleanParameter(req, "partial")
+                : ini.getBoolean("lucene.peerPartialResults", false);
+
+        final StopWatch stopWatch = new StopWatch();
+        final List<Peer> peers = scatter(req, count ? limit : skip + limit);
+        if (peers == null) {
+            ServletUtils.sendJsonError(req, resp, 503, "too_many_searches");
+            return;
+        }
+        gather(peers, ini.getLong("lucene.peerTimeout", 10000));
+        stopWatch.lap("search");
+
+        final List<Peer> answered = new ArrayList<>();
+        final JSONArray failed = new JSONArray();
+        for (final Peer peer : peers) {
+            if (peer.failure == null) {
+                answered.add(peer);
+            } else {
+                final JSONObject row = new JSONObject();
+                row.put("peer", peer.url);
+                row.put("reason", peer.failure);
+                failed.put(row);
+            }
+        }
+
+        if (answered.isEmpty() || (failed.length() > 0 && !partialOk)) {
+            final int status = clientError(peers);
+            final JSONObject error = new JSONObject();
+            error.put("reason", status == 502 ? "peer_failed" : "peer_rejected");
+            error.put("failed_peers", failed);
+            ServletUtils.sendJsonError(req, resp, status, error);
+            return;
+        }
+
+        final JSONArray result = new JSONArray();
+        final int queries = answered.get(0).result.length();
+        for (int i = 0; i < queries; i++) {
+            final JSONObject queryRow = merge(answered, i, sort, skip, count ? 0 : limit);
+            queryRow.put("search_duration", stopWatch.getElapsed("search"));
+            if (failed.length() > 0) {
+                queryRow.put("partial", true);
+                queryRow.put("failed_peers", failed);
+            }
+            result.put(queryRow);
+        }
+
+        resp.setHeader("Cache-Control", "must-revalidate");
+        ServletUtils.setResponseContentTypeAndEncoding(req, resp);
+        final Object json = result.length() > 1 ? result : result.getJSONObject(0);
+        final String callback = req.getParameter("callback");
+        final String body;
+        if (callback != null) {
+            body = String.format("%s(%s)", callback, json);
+        } else if (ServletUtils.getBooleanParameter(req, "debug")) {
+            body = json instanceof JSONObject ? ((JSONObject) json).toString(2) : ((JSONArray) json).toString(2);
+        } else {
+            body = json.toString();
+        }
+        final Writer writer = resp.getWriter();
+        try {
+            writer.write(body);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private List<String> getPeers() {
+        final List<String> result = new ArrayList<>();
+        for (final String peer : ini.getStringArray("lucene.peers")) {
+            final String trimmed = peer.trim();
+            if (!trimmed.isEmpty()) {
+                result.add(trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the peers being searched, or null if there were not enough
+     * threads to search them all.
+     */
+    private List<Peer> scatter(final HttpServletRequest req, final int limit) {
+        final List<NameValuePair> params = new ArrayList<>();
+        for (final Entry<String, String[]> entry : req.getParameterMap().entrySet()) {
+            final String name = entry.getKey();
+            if ("skip".equals(name) || "limit".equals(name) || "callback".equals(name)
+                    || "partial".equals(name) || LOCAL.equals(name)) {
+                continue;
+            }
+            for (final String value : entry.getValue()) {
+                params.add(new BasicNameValuePair(name, value));
+            }
+        }
+        params.add(new BasicNameValuePair("skip", "0"));
+        params.add(new BasicNameValuePair("limit", Integer.toString(limit)));
+        params.add(new BasicNameValuePair(LOCAL, "true"));
+        params.add(new BasicNameValuePair("force_json", "true"));
+
+        final List<Peer> result = new ArrayList<>();
+        for (final String url : getPeers()) {
+            final HttpPost post = new HttpPost(url + req.getRequestURI());
+            post.setEntity(new UrlEncodedFormEntity(params, StandardCharsets.UTF_8));
+            final Peer peer = new Peer(url, post);
+            try {
+                peer.future = executor.submit(new Callable<JSONArray>() {
+                    public JSONArray call() throws IOException {
+                        return client.execute(post, HANDLER);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                LOG.warn("No thread left to search " + url + ", rejecting the search.");
+                for (final Peer started : result) {
+                    started.post.abort();
+                    started.future.cancel(true);
+                }
+                return null;
+            }
+            result.add(peer);
+        }
+        return result;
+    }
+
+    private void gather(final List<Peer> peers, final long timeoutMillis) {
+        final long deadline = System.nanoTime() + MILLISECONDS.toNanos(timeoutMillis);
+        for (final Peer peer : peers) {
+            try {
+                final long remaining = Math.max(0, deadline - System.nanoTime());
+                peer.result = timeoutMillis > 0
+                        ? peer.future.get(remaining, NANOSECONDS)
+                        : peer.future.get();
+            } catch (final TimeoutException e) {
+                peer.post.abort();
+                peer.failure = "timeout";
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                peer.failure = String.valueOf(cause.getMessage());
+                if (cause instanceof PeerException) {
+                    peer.status = ((PeerException) cause).status;
+                }
+            } catch (final InterruptedException e) {
+                peer.post.abort();
+                peer.failure = "interrupted";
+                Thread.currentThread().interrupt();
+            }
+            if (peer.failure != null) {
+                LOG.warn("Search on " + peer.url + " failed: " + peer.failure);
+            }
+        }
+    }
+
+    /**
+     * @return the peers' status if every peer rejected the request with the
+     * same client error, e.g, bad query syntax, otherwise 502.
+     */
+    private static int clientError(final List<Peer> peers) {
+        int result = 0;
+        for (final Peer peer : peers) {
+            if (peer.failure == null) {
+                continue;
+            }
+            if (peer.status < 400 || peer.status >= 500 || (result != 0 && result != peer.status)) {
+                return 502;
+            }
+            result = peer.status;
+        }
+        return result == 0 ? 502 : result;
+    }
+
+    private static JSONObject merge(final List<Peer> peers, final int query, final Sort sort,
+                                    final int skip, final int limit) throws IOException, JSONException {
+        final JSONObject first = peers.get(0).result.getJSONObject(query);
+        final JSONObject result = new JSONObject();
+        result.put("q", first.opt("q"));
+
+        long totalRows = 0;
+        boolean exact = true;
+        boolean hasExact = false;
+        final JSONArray[] rows = new JSONArray[peers.size()];
+        for (int i = 0; i < rows.length; i++) {
+            final JSONObject queryRow = peers.get(i).result.getJSONObject(query);
+            totalRows += queryRow.optLong("total_rows");
+            if (queryRow.has("total_rows_exact")) {
+                hasExact = true;
+                exact &= queryRow.getBoolean("total_rows_exact");
+            }
+            final JSONArray peerRows = queryRow.optJSONArray("rows");
+            rows[i] = peerRows == null ? new JSONArray() : peerRows;
+        }
+
+        final JSONArray merged = new JSONArray();
+        if (limit > 0) {
+            final TopDocs topDocs;
+            if (sort == null) {
+                final TopDocs[] shardHits = new TopDocs[rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    shardHits[i] = new TopDocs(rows[i].length(), toScoreDocs(rows[i], null), Float.NaN);
+                }
+                topDocs = TopDocs.merge(skip, limit, shardHits);
+            } else {
+                final TopFieldDocs[] shardHits = new TopFieldDocs[rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    shardHits[i] = new TopFieldDocs(rows[i].length(), toScoreDocs(rows[i], sort.getSort()),
+                            sort.getSort(), Float.NaN);
+                }
+                topDocs = TopDocs.merge(sort, skip, limit, shardHits);
+            }
+            for (final ScoreDoc hit : topDocs.scoreDocs) {
+                merged.put(rows[hit.shardIndex].get(hit.doc));
+            }
+        }
+
+        result.put("skip", skip);
+        result.put("limit", limit);
+        result.put("total_rows", totalRows);
+        if (hasExact) {
+            result.put("total_rows_exact", exact);
+        }
+        if (first.has("sort_order")) {
+            result.put("sort_order", first.get("sort_order"));
+        }
+        result.put("rows", merged);
+        return result;
+    }
+
+    /**
+     * Rebuilds the hits of one peer; the doc id is the row's position in the
+     * peer's response.
+     */
+    private static ScoreDoc[] toScoreDocs(final JSONArray rows, final SortField[] fields) throws JSONException {
+        final ScoreDoc[] result = new ScoreDoc[rows.length()];
+        for (int i = 0; i < result.length; i++) {
+            final JSONObject row = rows.getJSONObject(i);
+            final float score = (float) row.optDouble("score", Double.NaN);
+            if (fields == null) {
+                result[i] = new ScoreDoc(i, score);
+            } else {
+                final JSONArray order = row.optJSONArray("sort_order");
+                final Object[] values = new Object[fields.length];
+                for (int j = 0; j < fields.length; j++) {
+                    values[j] = toSortValue(fields[j], order == null ? null : order.opt(j), score, i);
+                }
+                result[i] = new FieldDoc(i, score, values);
+            }
+        }
+        return result;
+    }
+
+    private static Object toSortValue(final SortField field, final Object value, final float score, final int doc) {
+        final boolean missing = value == null || JSONObject.NULL.equals(value);
+        switch (field.getType()) {
+            case SCORE:
+                return missing ? score : ((Number) value).floatValue();
+            case DOC:
+                return missing ? doc : ((Number) value).intValue();
+            case STRING:
+                return missing ? null : new BytesRef(value.toString());
+            case INT:
+                return missing ? null : ((Number) value).intValue();
+            case LONG:
+                return missing ? null : ((Number) value).longValue();
+            case FLOAT:
+                return missing ? null : ((Number) value).floatValue();
+            case DOUBLE:
+                return missing ? null : ((Number) value).doubleValue();
+            default:
+                throw new IllegalArgumentException("Cannot merge on " + field);
+        }
+    }
+
+}
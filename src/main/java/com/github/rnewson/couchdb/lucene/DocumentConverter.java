@@ -20,7 +20,8 @@ import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
 import com.github.rnewson.couchdb.lucene.couchdb.Database;
 import com.github.rnewson.couchdb.lucene.couchdb.View;
 import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
-import com.github.rnewson.couchdb.lucene.rhino.JSLog;
+import com.github.rnewson.couchdb.lucene.rhino.BudgetContextFactory;
+import com.github.rnewson.couchdb.lucene.rhino.FunctionCache;
 import com.github.rnewson.couchdb.lucene.rhino.RhinoDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,58 +33,88 @@ import org.json.JSONObject;
 import org.mozilla.javascript.*;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-public final class DocumentConverter {
+/**
+ * Runs a Javascript index function with Rhino.
+ *
+ * @author rnewson
+ */
+public final class DocumentConverter implements IndexFunction {
 
     private static final Collection<Document> NO_DOCUMENTS = Collections.emptyList();
     private static final Logger LOG = LoggerFactory.getLogger(DocumentConverter.class);
 
     private final Context context;
     private final Function viewFun;
-    private final ScriptableObject scope;
+    private final Scriptable scope;
 
     public DocumentConverter(final Context context, final View view) throws IOException, JSONException {
         this.context = context;
-        scope = context.initStandardObjects();
         context.setLanguageVersion(Context.VERSION_1_8);
+        scope = FunctionCache.newScope(context);
 
-        // Allow custom document helper class.
-        try {
-            ScriptableObject.defineClass(scope, RhinoDocument.class);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InstantiationException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
-
-        // Add a log object
-        ScriptableObject.putProperty(scope, "log", new JSLog());
-
-        // Compile user-specified function
+        // Compile user-specified function, or reuse it if another database has the same view.
         try {
-            viewFun = view.compileFunction(context, scope);
+            viewFun = FunctionCache.getFunction(context, scope, view);
         } catch (final RhinoException e) {
             LOG.error("View code for " + view + " does not compile.");
             throw e;
         }
     }
 
+    /**
+     * Converts the document, waiting for its attachments to be extracted.
+     */
     public Collection<Document> convert(
             final CouchDocument doc,
             final ViewSettings defaults,
             final Database database) throws IOException, ParseException, JSONException {
-        final Object result;
-        final Scriptable scriptable = convertObject(doc.asJson());
+        final List<CompletableFuture<AttachmentExtractor.Fields>> extractions = new ArrayList<>();
+        final Collection<Document> result = convert(doc, defaults, database, extractions);
+        for (final CompletableFuture<AttachmentExtractor.Fields> extraction : extractions) {
+            try {
+                extraction.join();
+            } catch (final CompletionException | CancellationException e) {
+                // The document is indexed without the attachment.
+            }
+        }
+        AttachmentExtractor.apply(extractions);
+        return result;
+    }
 
+    public Collection<Document> convert(
+            final CouchDocument doc,
+            final ViewSettings defaults,
+            final Database database,
+            final Collection<CompletableFuture<AttachmentExtractor.Fields>> extractions) throws IOException, ParseException, JSONException {
+        ContextFactory.getGlobal().enterContext(context);
+        try {
+            return convert(doc, defaults, database, extractions, convertObject(doc.asJson()));
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private Collection<Document> convert(
+            final CouchDocument doc,
+            final ViewSettings defaults,
+            final Database database,
+            final Collection<CompletableFuture<AttachmentExtractor.Fields>> extractions,
+            final Scriptable scriptable) throws IOException, ParseException, JSONException {
+        final Object result;
         try {
+            BudgetContextFactory.start(context);
             result = viewFun.call(context, scope, null, new Object[]{scriptable});
+        } catch (final BudgetContextFactory.BudgetExceededError e) {
+            throw new BudgetExceededException(e.getMessage());
         } catch (final JavaScriptException e) {
             LOG.warn(doc + " caused exception during conversion.", e);
             return NO_DOCUMENTS;
@@ -95,7 +126,7 @@ public final class DocumentConverter {
 
         if (result instanceof RhinoDocument) {
             final RhinoDocument rhinoDocument = (RhinoDocument) result;
-            final Document document = rhinoDocument.toDocument(doc.getId(), defaults, database);
+            final Document document = rhinoDocument.toDocument(doc, defaults, database, extractions);
             return Collections.singleton(document);
         }
 
@@ -106,9 +137,10 @@ public final class DocumentConverter {
                 if (nativeArray.get(i, null) instanceof RhinoDocument) {
                     final RhinoDocument rhinoDocument = (RhinoDocument) nativeArray.get(i, null);
                     final Document document = rhinoDocument.toDocument(
-                            doc.getId(),
+                            doc,
                             defaults,
-                            database);
+                            database,
+                            extractions);
                     arrayResult.add(document);
                 }
             }
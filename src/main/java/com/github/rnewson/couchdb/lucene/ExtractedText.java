@@ -0,0 +1,143 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The text Tika extracted from an attachment, spooled to a gzipped file
+ * instead of held in memory, and its Dublin Core metadata. The text is
+ * indexed through a Reader that opens the file when Lucene first reads the
+ * field, unless it was opened beforehand; a temporary file is deleted once
+ * Lucene is done with it.
+ *
+ * @author rnewson
+ */
+public final class ExtractedText {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractedText.class);
+
+    private final class SpooledReader extends Reader {
+
+        private Reader in = opened;
+
+        public int read(final char[] cbuf, final int off, final int len) throws IOException {
+            if (in == null) {
+                try {
+                    in = newReader();
+                } catch (final FileNotFoundException e) {
+                    LOG.warn("Extracted text " + file + " has gone, indexing no text.");
+                    in = new StringReader("");
+                }
+            }
+            return in.read(cbuf, off, len);
+        }
+
+        public void close() throws IOException {
+            try {
+                if (in != null) {
+                    in.close();
+                    in = null;
+                }
+            } finally {
+                if (temporary) {
+                    file.delete();
+                }
+            }
+        }
+
+    }
+
+    private final File file;
+
+    private final JSONObject metadata;
+
+    private final boolean temporary;
+
+    private final Reader opened;
+
+    public ExtractedText(final File file, final JSONObject metadata, final boolean temporary) {
+        this(file, metadata, temporary, null);
+    }
+
+    private ExtractedText(final File file, final JSONObject metadata, final boolean temporary,
+                          final Reader opened) {
+        this.file = file;
+        this.metadata = metadata;
+        this.temporary = temporary;
+        this.opened = opened;
+    }
+
+    /**
+     * Opens the text now, so it can still be indexed if the file is deleted,
+     * e.g. by cache eviction, before Lucene reads the field.
+     *
+     * @throws FileNotFoundException if the file has already gone.
+     */
+    public ExtractedText open() throws IOException {
+        return new ExtractedText(file, metadata, temporary, newReader());
+    }
+
+    public static Writer newWriter(final File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public JSONObject getMetadata() {
+        return metadata;
+    }
+
+    public boolean isTemporary() {
+        return temporary;
+    }
+
+    public Reader newReader() throws IOException {
+        return new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds the text as an unstored field that Lucene reads from disk while
+     * indexing, and the metadata as _dc.* fields.
+     */
+    public void addFields(final String fieldName, final Document doc) {
+        doc.add(new TextField(fieldName, new SpooledReader()));
+        Tika.INSTANCE.addMetadata(metadata, doc);
+    }
+
+}
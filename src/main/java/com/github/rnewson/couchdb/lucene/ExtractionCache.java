@@ -0,0 +1,282 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+/**
+ * Keeps the text and metadata Tika extracted from attachments on disk, keyed
+ * by the attachment's CouchDB digest, so that unchanged attachments are not
+ * fetched and parsed again when a document changes or an index is rebuilt.
+ * Entries live in the {@value #DIRNAME} directory under lucene.dir; the
+ * directory can be deleted at any time. Set lucene.extractionCache=false to
+ * turn the cache off.
+ *
+ * The cache holds at most lucene.extractionCacheMB megabytes. Once it grows
+ * past that, the least recently used entries are deleted until it is back
+ * under 90% of the limit; an entry's metadata file is touched on every hit.
+ *
+ * Text is spooled to the {@value #SPOOL} subdirectory while Tika runs and
+ * moved into the cache when it is complete.
+ *
+ * @author rnewson
+ */
+public final class ExtractionCache {
+
+    public static final ExtractionCache INSTANCE = new ExtractionCache();
+
+    public static final String DIRNAME = "_extracted";
+
+    private static final String SPOOL = "spool";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractionCache.class);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The size of the cache, or -1 until it has been measured.
+     */
+    private final AtomicLong bytes = new AtomicLong(-1);
+
+    private final AtomicBoolean trimming = new AtomicBoolean();
+
+    private volatile long maxBytes;
+
+    private volatile File dir;
+
+    private volatile File spool;
+
+    private ExtractionCache() {
+    }
+
+    public void setIni(final HierarchicalINIConfiguration ini) {
+        final File root = new File(ini.getString("lucene.dir", "indexes"), DIRNAME);
+        dir = ini.getBoolean("lucene.extractionCache", true) ? root : null;
+        maxBytes = (long) (ini.getDouble("lucene.extractionCacheMB", 1024) * 1024 * 1024);
+        bytes.set(-1);
+        spool = new File(root, SPOOL);
+        deleteStaleSpoolFiles(spool);
+    }
+
+    /**
+     * @return a new file to spool extracted text to; the caller deletes it
+     * or hands it to {@link #put(String, ExtractedText)}.
+     */
+    public File newSpoolFile() throws IOException {
+        final File spool = this.spool;
+        if (spool == null) {
+            return File.createTempFile("extracted", ".txt.gz");
+        }
+        spool.mkdirs();
+        return File.createTempFile("extracted", ".txt.gz", spool);
+    }
+
+    /**
+     * @return the cached extraction, or null.
+     */
+    public ExtractedText get(final String digest) {
+        final File file = file(digest, ".json");
+        if (file == null) {
+            return null;
+        }
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            final JSONObject metadata = new JSONObject(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+            // Opened now, as the entry may be evicted before the text is indexed.
+            final ExtractedText result = new ExtractedText(file(digest, ".txt.gz"), metadata, false).open();
+            hits.incrementAndGet();
+            file.setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (final FileNotFoundException e) {
+            // Evicted meanwhile.
+            misses.incrementAndGet();
+            return null;
+        } catch (final IOException | JSONException e) {
+            LOG.warn("Ignoring unreadable cache entry " + file, e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Moves spooled text into the cache.
+     *
+     * @return the cached extraction, or the spooled one if the cache is off
+     * or the move failed.
+     */
+    public ExtractedText put(final String digest, final ExtractedText spooled) {
+        final File metadata = file(digest, ".json");
+        if (metadata == null) {
+            return spooled;
+        }
+        final File text = file(digest, ".txt.gz");
+        final File tmp = new File(metadata.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            metadata.getParentFile().mkdirs();
+            // The metadata goes last, an entry is complete once it exists.
+            Files.move(spooled.getFile().toPath(), text.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            FileUtils.writeStringToFile(tmp, spooled.getMetadata().toString(), StandardCharsets.UTF_8);
+            Files.move(tmp.toPath(), metadata.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            // Opened before trimming, which may evict the new entry too.
+            final ExtractedText result = new ExtractedText(text, spooled.getMetadata(), false).open();
+            added(text.length() + metadata.length());
+            return result;
+        } catch (final IOException e) {
+            LOG.warn("Failed to cache extracted text in " + text, e);
+            tmp.delete();
+            return text.exists() ? new ExtractedText(text, spooled.getMetadata(), false) : spooled;
+        }
+    }
+
+    public JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("enabled", dir != null);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        result.put("bytes", bytes.get());
+        return result;
+    }
+
+    private void added(final long entryBytes) {
+        final long max = maxBytes;
+        if (max <= 0) {
+            return;
+        }
+        long total;
+        do {
+            total = bytes.get();
+        } while (total != -1 && !bytes.compareAndSet(total, total + entryBytes));
+        if (total == -1 || total + entryBytes > max) {
+            trim();
+        }
+    }
+
+    /**
+     * Measures the cache and deletes the least recently used entries if it is
+     * over the limit. Runs on the thread that added the entry; if another
+     * thread is already trimming this returns immediately.
+     */
+    void trim() {
+        final File dir = this.dir;
+        if (dir == null || !trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<File> entries = new ArrayList<>();
+            long total = 0;
+            final File[] subdirs = dir.listFiles();
+            for (final File subdir : subdirs == null ? new File[0] : subdirs) {
+                final File[] files = subdir.getName().equals(SPOOL) ? null : subdir.listFiles();
+                for (final File file : files == null ? new File[0] : files) {
+                    total += file.length();
+                    if (file.getName().endsWith(".json")) {
+                        entries.add(file);
+                    }
+                }
+            }
+
+            final long target = maxBytes / 10 * 9;
+            if (maxBytes > 0 && total > maxBytes) {
+                final Map<File, Long> accessed = new HashMap<>();
+                for (final File entry : entries) {
+                    accessed.put(entry, entry.lastModified());
+                }
+                Collections.sort(entries, new Comparator<File>() {
+                    public int compare(final File a, final File b) {
+                        return Long.compare(accessed.get(a), accessed.get(b));
+                    }
+                });
+                for (final File entry : entries) {
+                    if (total <= target) {
+                        break;
+                    }
+                    final String path = entry.getPath();
+                    final File text = new File(path.substring(0, path.length() - ".json".length()) + ".txt.gz");
+                    final long length = entry.length() + text.length();
+                    // The metadata goes first, an entry is gone once it does.
+                    entry.delete();
+                    text.delete();
+                    total -= length;
+                    evictions.incrementAndGet();
+                }
+                LOG.info("Trimmed the extraction cache to " + total + " bytes.");
+            }
+            bytes.set(total);
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    private File file(final String digest, final String suffix) {
+        final File dir = this.dir;
+        if (dir == null || digest == null) {
+            return null;
+        }
+        final String name = DigestUtils.sha1Hex(digest);
+        return new File(new File(dir, name.substring(0, 2)), name + suffix);
+    }
+
+    /**
+     * Spooled text is deleted once indexed; anything older than a day was
+     * left behind by a restart or an abandoned extraction.
+     */
+    private static void deleteStaleSpoolFiles(final File spool) {
+        final File[] files = spool.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - DAYS.toMillis(1);
+        for (final File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+}
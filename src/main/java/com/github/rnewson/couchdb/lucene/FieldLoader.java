@@ -0,0 +1,159 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.Map.Entry;
+
+/**
+ * Loads the fields of a search hit. The _id and fields named with a type
+ * (e.g, category&lt;string&gt;) are read column-wise from their doc values,
+ * whether or not they are stored, like the values a sort returns. Other
+ * fields, and documents that have no doc value (e.g, written by an older
+ * version), are read from stored fields.
+ *
+ * @author rnewson
+ */
+public final class FieldLoader {
+
+    private static final String ID = "_id";
+
+    private final Map<String, FieldType> fields;
+
+    /**
+     * @param includeFields comma-separated field names, optionally typed like
+     *                      sort fields (e.g, price&lt;float&gt;) to read their doc values,
+     *                      or null to load all stored fields.
+     */
+    public FieldLoader(final String includeFields) throws ParseException {
+        if (includeFields == null) {
+            this.fields = null;
+            return;
+        }
+        this.fields = new LinkedHashMap<>();
+        this.fields.put(ID, FieldType.STRING);
+        for (final String field : Utils.splitOnCommas(includeFields)) {
+            final TypedField typedField = new TypedField(field);
+            // An untyped name parses as TEXT, which has no doc values.
+            this.fields.put(typedField.getName(), typedField.getType());
+        }
+    }
+
+    public Document load(final IndexSearcher searcher, final int docId) throws IOException {
+        if (fields == null) {
+            return searcher.doc(docId);
+        }
+
+        final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        final LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        final LeafReader reader = leaf.reader();
+        final int doc = docId - leaf.docBase;
+
+        final Document result = new Document();
+        Set<String> stored = null;
+        for (final Entry<String, FieldType> entry : fields.entrySet()) {
+            if (!loadDocValue(reader, doc, entry.getKey(), entry.getValue(), result)) {
+                if (stored == null) {
+                    stored = new HashSet<>();
+                }
+                stored.add(entry.getKey());
+            }
+        }
+
+        if (stored != null) {
+            for (final IndexableField field : reader.document(doc, stored)) {
+                result.add(field);
+            }
+        }
+        return result;
+    }
+
+    private static boolean loadDocValue(final LeafReader reader, final int doc, final String name,
+                                        final FieldType type, final Document out) throws IOException {
+        final FieldInfo info = reader.getFieldInfos().fieldInfo(name);
+        if (info == null) {
+            return false;
+        }
+
+        if (type == FieldType.TEXT) {
+            return false;
+        }
+
+        switch (info.getDocValuesType()) {
+            case SORTED: {
+                final SortedDocValues values = reader.getSortedDocValues(name);
+                final int ord = values.getOrd(doc);
+                if (ord == -1) {
+                    return false;
+                }
+                out.add(new StoredField(name, values.lookupOrd(ord).utf8ToString()));
+                return true;
+            }
+            case BINARY: {
+                if (!reader.getDocsWithField(name).get(doc)) {
+                    return false;
+                }
+                out.add(new StoredField(name, reader.getBinaryDocValues(name).get(doc).utf8ToString()));
+                return true;
+            }
+            case NUMERIC: {
+                // Numeric doc values can only be decoded if the type is known.
+                switch (type) {
+                    case INT:
+                    case LONG:
+                    case DATE:
+                    case FLOAT:
+                    case DOUBLE:
+                        break;
+                    default:
+                        return false;
+                }
+                if (!reader.getDocsWithField(name).get(doc)) {
+                    return false;
+                }
+                final long value = reader.getNumericDocValues(name).get(doc);
+                switch (type) {
+                    case INT:
+                        out.add(new StoredField(name, (int) value));
+                        break;
+                    case FLOAT:
+                        out.add(new StoredField(name, Float.intBitsToFloat((int) value)));
+                        break;
+                    case DOUBLE:
+                        out.add(new StoredField(name, Double.longBitsToDouble(value)));
+                        break;
+                    default:
+                        out.add(new StoredField(name, value));
+                        break;
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+}
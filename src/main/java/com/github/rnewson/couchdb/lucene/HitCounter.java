@@ -0,0 +1,118 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+
+/**
+ * Counts the matches of a query without scoring, sorting or loading any
+ * documents.
+ *
+ * @author rnewson
+ */
+public final class HitCounter {
+
+    private HitCounter() {
+        throw new InstantiationError("This class is not supposed to be instantiated.");
+    }
+
+    /**
+     * Counts all matches of the query.
+     */
+    public static int count(final IndexSearcher searcher, final Query query) throws IOException {
+        return count(searcher, query, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts matches of the query but stops once threshold matches have been
+     * seen. A result equal to the threshold is therefore a lower bound.
+     */
+    public static int count(final IndexSearcher searcher, final Query query, final int threshold)
+            throws IOException {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive.");
+        }
+        final Query rewritten = unwrap(searcher.rewrite(query));
+        Weight weight = null;
+        int result = 0;
+        for (final LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            if (result >= threshold) {
+                break;
+            }
+            final LeafReader reader = leaf.reader();
+
+            // Per-segment fast paths.
+            if (rewritten instanceof MatchAllDocsQuery) {
+                result += reader.numDocs();
+                continue;
+            }
+            if (rewritten instanceof TermQuery && !reader.hasDeletions()) {
+                result += reader.docFreq(((TermQuery) rewritten).getTerm());
+                continue;
+            }
+
+            // Slow path, which still benefits from the query cache.
+            if (weight == null) {
+                weight = searcher.createNormalizedWeight(rewritten, false);
+            }
+            result += countLeaf(weight, leaf, threshold - result);
+        }
+        return Math.min(result, threshold);
+    }
+
+    private static int countLeaf(final Weight weight, final LeafReaderContext leaf, final int max)
+            throws IOException {
+        final BulkScorer scorer = weight.bulkScorer(leaf);
+        if (scorer == null) {
+            return 0;
+        }
+        final int[] count = new int[1];
+        try {
+            scorer.score(new LeafCollector() {
+
+                public void setScorer(final Scorer scorer) {
+                }
+
+                public void collect(final int doc) {
+                    if (++count[0] >= max) {
+                        throw new CollectionTerminatedException();
+                    }
+                }
+            }, leaf.reader().getLiveDocs());
+        } catch (final CollectionTerminatedException e) {
+            // Threshold reached.
+        }
+        return count[0];
+    }
+
+    private static Query unwrap(Query query) {
+        while (true) {
+            if (query instanceof ConstantScoreQuery) {
+                query = ((ConstantScoreQuery) query).getQuery();
+            } else if (query instanceof BoostQuery) {
+                query = ((BoostQuery) query).getQuery();
+            } else {
+                return query;
+            }
+        }
+    }
+
+}
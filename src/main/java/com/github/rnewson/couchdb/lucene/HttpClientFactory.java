@@ -13,48 +13,87 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.github.rnewson.couchdb.lucene;
 
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
-import org.apache.http.*;
+import org.apache.commons.configuration.SubnodeConfiguration;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.AuthState;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.config.ConnectionConfig;
 import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.ClientConnectionRequest;
-import org.apache.http.conn.ManagedClientConnection;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
 import org.apache.http.conn.routing.HttpRoute;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HttpContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * HttpClient instances just the way we like them.
  *
+ * All CouchDB servers share one connection pool of lucene.maxConnections.
+ * Each CouchDB section may set its own maxConnections, connectTimeout and
+ * socketTimeout, defaulting to lucene.maxConnectionsPerCouch,
+ * lucene.connectTimeout and lucene.socketTimeout. Connections idle for
+ * lucene.connectionIdleTimeout seconds are closed in the background.
+ *
+ * Responses may be gzip or deflate encoded unless lucene.compression is
+ * false; they are decoded as they are read, and the bytes on the wire and
+ * after decoding are counted, as are the connections leased from the pool
+ * and how many of them were already open.
+ *
  * @author rnewson
  */
 public final class HttpClientFactory {
@@ -63,18 +102,18 @@ public final class HttpClientFactory {
         throw new InstantiationError("This class is not supposed to be instantiated.");
     }	
 
+    private static final Logger LOG = LoggerFactory.getLogger(HttpClientFactory.class);
+
     private static final class PreemptiveAuthenticationRequestInterceptor
             implements HttpRequestInterceptor {
 
         public void process(final HttpRequest request, final HttpContext context)
                 throws HttpException, IOException {
 
-            final AuthState authState = (AuthState) context
-                    .getAttribute(ClientContext.TARGET_AUTH_STATE);
-            final CredentialsProvider credsProvider = (CredentialsProvider) context
-                    .getAttribute(ClientContext.CREDS_PROVIDER);
-            final HttpHost targetHost = (HttpHost) context
-                    .getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+            final HttpClientContext clientContext = HttpClientContext.adapt(context);
+            final AuthState authState = clientContext.getTargetAuthState();
+            final CredentialsProvider credsProvider = clientContext.getCredentialsProvider();
+            final HttpHost targetHost = clientContext.getTargetHost();
 
             // If not auth scheme has been initialized yet
             if (authState.getAuthScheme() == null) {
@@ -83,93 +122,309 @@ public final class HttpClientFactory {
                 Credentials creds = credsProvider.getCredentials(authScope);
                 // If found, generate BasicScheme preemptively
                 if (creds != null) {
-                    authState.setAuthScheme(new BasicScheme());
-                    authState.setCredentials(creds);
+                    authState.update(new BasicScheme(), creds);
                 }
             }
         }
     }
 
-    private static class ShieldedClientConnManager implements ClientConnectionManager {
+    private static final class RequestCountingInterceptor implements HttpRequestInterceptor {
 
-        private final ClientConnectionManager delegate;
+        public void process(final HttpRequest request, final HttpContext context) {
+            REQUESTS.incrementAndGet();
+        }
 
-        public ShieldedClientConnManager(final ClientConnectionManager delegate) {
-            this.delegate = delegate;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong counter;
+
+        private CountingInputStream(final InputStream in, final AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result != -1) {
+                counter.incrementAndGet();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int result = super.read(b, off, len);
+            if (result > 0) {
+                counter.addAndGet(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long result = super.skip(n);
+            counter.addAndGet(result);
+            return result;
+        }
+
+    }
+
+    private static final class CountingEntity extends HttpEntityWrapper {
+
+        private final AtomicLong counter;
+
+        private CountingEntity(final HttpEntity entity, final AtomicLong counter) {
+            super(entity);
+            this.counter = counter;
         }
 
-        public void closeExpiredConnections() {
-            delegate.closeExpiredConnections();
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CountingInputStream(super.getContent(), counter);
         }
 
-        public void closeIdleConnections(final long idletime, final TimeUnit tunit) {
-            delegate.closeIdleConnections(idletime, tunit);
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            final InputStream in = getContent();
+            try {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
         }
 
-        public SchemeRegistry getSchemeRegistry() {
-            return delegate.getSchemeRegistry();
+    }
+
+    /**
+     * Decodes gzip and deflate responses as they are streamed, counting the
+     * bytes on either side of the decoder.
+     */
+    private static final class ResponseDecodingInterceptor implements HttpResponseInterceptor {
+
+        public void process(final HttpResponse response, final HttpContext context) {
+            final HttpEntity entity = response.getEntity();
+            if (entity == null || entity.getContentLength() == 0) {
+                return;
+            }
+            final Header header = entity.getContentEncoding();
+            final String encoding = header == null ? "identity" : header.getValue().trim().toLowerCase(Locale.ROOT);
+            final HttpEntity wire = new CountingEntity(entity, WIRE_BYTES);
+            final HttpEntity decoded;
+            if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+                decoded = new GzipDecompressingEntity(wire);
+            } else if ("deflate".equals(encoding)) {
+                decoded = new DeflateDecompressingEntity(wire);
+            } else if ("identity".equals(encoding)) {
+                response.setEntity(new CountingEntity(wire, DECODED_BYTES));
+                return;
+            } else {
+                return;
+            }
+            COMPRESSED.incrementAndGet();
+            response.setEntity(new CountingEntity(decoded, DECODED_BYTES));
+            response.removeHeaders("Content-Length");
+            response.removeHeaders("Content-Encoding");
+            response.removeHeaders("Content-MD5");
         }
 
-        public void releaseConnection(
-                final ManagedClientConnection conn,
-                final long validDuration,
-                final TimeUnit timeUnit) {
-            delegate.releaseConnection(conn, validDuration, timeUnit);
+    }
+
+    private static final class CountingConnectionFactory
+            implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+
+        public ManagedHttpClientConnection create(final HttpRoute route, final ConnectionConfig config) {
+            OPENED.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
         }
 
-        public ClientConnectionRequest requestConnection(final HttpRoute route, final Object state) {
-            return delegate.requestConnection(route, state);
+    }
+
+    /**
+     * Counts the connections handed out by the pool. A connection that is
+     * already open when it is leased is being reused; a new one has not
+     * been connected yet.
+     */
+    private static final class CountingConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private CountingConnectionManager() {
+            super(new CountingConnectionFactory());
         }
 
-        public void shutdown() {
+        @Override
+        public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+            final ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+
+                public HttpClientConnection get(final long timeout, final TimeUnit unit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    final HttpClientConnection result = request.get(timeout, unit);
+                    LEASED.incrementAndGet();
+                    if (result.isOpen()) {
+                        REUSED.incrementAndGet();
+                    }
+                    return result;
+                }
+
+                public boolean cancel() {
+                    return request.cancel();
+                }
+
+            };
+        }
+
+    }
+
+    /**
+     * Applies the timeouts of the CouchDB section a request is for. Callers
+     * cannot close it, the pool is shared by the whole process.
+     */
+    private static final class ShieldedHttpClient extends CloseableHttpClient {
+
+        private final CloseableHttpClient delegate;
+
+        private final Map<String, RequestConfig> configs;
+
+        private ShieldedHttpClient(final CloseableHttpClient delegate, final Map<String, RequestConfig> configs) {
+            this.delegate = delegate;
+            this.configs = configs;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request,
+                                                  final HttpContext context)
+                throws IOException, ClientProtocolException {
+            final HttpClientContext clientContext = context == null
+                    ? HttpClientContext.create() : HttpClientContext.adapt(context);
+            if (target != null && clientContext.getAttribute(HttpClientContext.REQUEST_CONFIG) == null) {
+                final RequestConfig config = configs.get(key(target.getSchemeName(), target.getHostName(),
+                        target.getPort()));
+                if (config != null) {
+                    clientContext.setRequestConfig(config);
+                }
+            }
+            return delegate.execute(target, request, clientContext);
+        }
+
+        public void close() {
             // SHIELDED.
-            // delegate.shutdown();
+        }
+
+        @Deprecated
+        public HttpParams getParams() {
+            return delegate.getParams();
+        }
+
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            return delegate.getConnectionManager();
         }
 
     }
 
-    private static DefaultHttpClient instance;
+    private static final AtomicLong REQUESTS = new AtomicLong();
+
+    private static final AtomicLong OPENED = new AtomicLong();
+
+    private static final AtomicLong LEASED = new AtomicLong();
+
+    private static final AtomicLong REUSED = new AtomicLong();
+
+    private static final AtomicLong COMPRESSED = new AtomicLong();
+
+    private static final AtomicLong WIRE_BYTES = new AtomicLong();
+
+    private static final AtomicLong DECODED_BYTES = new AtomicLong();
+
+    private static ShieldedHttpClient instance;
+
+    private static PoolingHttpClientConnectionManager manager;
+
+    private static ScheduledExecutorService reaper;
 
     private static HierarchicalINIConfiguration INI;
 
     public static synchronized HttpClient getInstance() throws MalformedURLException {
         if (instance == null) {
-            final HttpParams params = new BasicHttpParams();
-            // protocol params.
-            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-            HttpProtocolParams.setUseExpectContinue(params, false);
-            // connection params.
-            HttpConnectionParams.setTcpNoDelay(params, true);
-            HttpConnectionParams.setStaleCheckingEnabled(params, false);
-            ConnManagerParams.setMaxTotalConnections(params, 1000);
-            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(1000));
-
-            final SchemeRegistry schemeRegistry = new SchemeRegistry();
-            schemeRegistry
-                    .register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 5984));
-            schemeRegistry
-                    .register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-            final ClientConnectionManager cm = new ShieldedClientConnManager(
-                    new ThreadSafeClientConnManager(params, schemeRegistry));
-
-            instance = new DefaultHttpClient(cm, params);
-
-            if (INI != null) {
-                final CredentialsProvider credsProvider = new BasicCredentialsProvider();
-                final Iterator<?> it = INI.getKeys();
-                while (it.hasNext()) {
-                    final String key = (String) it.next();
-                    if (!key.startsWith("lucene.") && key.endsWith(".url")) {
-                        final URL url = new URL(INI.getString(key));
-                        if (url.getUserInfo() != null) {
-                            credsProvider.setCredentials(
-                                    new AuthScope(url.getHost(), url.getPort()),
-                                    new UsernamePasswordCredentials(url.getUserInfo()));
-                        }
-                    }
+            final HierarchicalINIConfiguration ini = INI != null ? INI : new HierarchicalINIConfiguration();
+
+            manager = new CountingConnectionManager();
+            manager.setMaxTotal(Math.max(1, ini.getInt("lucene.maxConnections", 200)));
+            manager.setDefaultMaxPerRoute(Math.max(1, ini.getInt("lucene.maxConnectionsPerCouch", 100)));
+            manager.setValidateAfterInactivity(ini.getInt("lucene.validateAfterInactivity", 2000));
+
+            final RequestConfig defaults = requestConfig(ini.getSection("lucene"), RequestConfig.custom()
+                    .setConnectTimeout(10000)
+                    .setSocketTimeout(60000)
+                    .setConnectionRequestTimeout(60000)
+                    .setExpectContinueEnabled(false)
+                    .build());
+
+            final CredentialsProvider credsProvider = new BasicCredentialsProvider();
+            final Map<String, RequestConfig> configs = new HashMap<>();
+            for (final String name : ini.getSections()) {
+                if (name == null || "lucene".equals(name)) {
+                    continue;
                 }
-                instance.setCredentialsProvider(credsProvider);
-                instance.addRequestInterceptor(new PreemptiveAuthenticationRequestInterceptor(), 0);
+                final SubnodeConfiguration section = ini.getSection(name);
+                if (!section.containsKey("url")) {
+                    continue;
+                }
+                final URL url = new URL(section.getString("url"));
+                final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+                if (url.getUserInfo() != null) {
+                    credsProvider.setCredentials(
+                            new AuthScope(url.getHost(), port),
+                            new UsernamePasswordCredentials(url.getUserInfo()));
+                }
+                final String key = key(url.getProtocol(), url.getHost(), port);
+                if (configs.containsKey(key)) {
+                    LOG.warn("Section [" + name + "] shares " + key + " with another section, using the first's settings.");
+                    continue;
+                }
+                configs.put(key, requestConfig(section, defaults));
+                if (section.containsKey("maxConnections")) {
+                    manager.setMaxPerRoute(new HttpRoute(new HttpHost(url.getHost(), port, url.getProtocol()),
+                                    null, "https".equalsIgnoreCase(url.getProtocol())),
+                            Math.max(1, section.getInt("maxConnections")));
+                }
+            }
+
+            final HttpClientBuilder builder = HttpClients.custom()
+                    .setConnectionManager(manager)
+                    .setDefaultRequestConfig(defaults)
+                    .setDefaultCredentialsProvider(credsProvider)
+                    .disableContentCompression()
+                    .addInterceptorFirst(new PreemptiveAuthenticationRequestInterceptor())
+                    .addInterceptorLast(new RequestCountingInterceptor())
+                    .addInterceptorLast(new ResponseDecodingInterceptor());
+            if (ini.getBoolean("lucene.compression", true)) {
+                builder.addInterceptorLast(new RequestAcceptEncoding());
+            }
+            instance = new ShieldedHttpClient(builder.build(), configs);
+
+            final long idleSeconds = ini.getLong("lucene.connectionIdleTimeout", 30);
+            if (idleSeconds > 0) {
+                reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        final Thread result = new Thread(r, "couchdb-lucene-connection-reaper");
+                        result.setDaemon(true);
+                        return result;
+                    }
+                });
+                final PoolingHttpClientConnectionManager manager = HttpClientFactory.manager;
+                reaper.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        manager.closeExpiredConnections();
+                        manager.closeIdleConnections(idleSeconds, SECONDS);
+                    }
+                }, idleSeconds, Math.max(1, idleSeconds / 2), SECONDS);
             }
         }
         return instance;
@@ -179,4 +434,64 @@ public final class HttpClientFactory {
         INI = ini;
     }
 
+    /**
+     * Closes the pool so the next {@link #getInstance()} builds a new one
+     * from the current configuration.
+     */
+    static synchronized void reset() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+        if (manager != null) {
+            manager.shutdown();
+            manager = null;
+        }
+        instance = null;
+    }
+
+    public static synchronized JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("requests", REQUESTS.get());
+        result.put("connections_opened", OPENED.get());
+        result.put("leased", LEASED.get());
+        result.put("reused", REUSED.get());
+        result.put("compressed_responses", COMPRESSED.get());
+        result.put("wire_bytes", WIRE_BYTES.get());
+        result.put("decoded_bytes", DECODED_BYTES.get());
+        if (manager != null) {
+            final PoolStats total = manager.getTotalStats();
+            result.put("pool", toJSON(total));
+            final JSONObject routes = new JSONObject();
+            for (final HttpRoute route : manager.getRoutes()) {
+                routes.put(route.getTargetHost().toURI(), toJSON(manager.getStats(route)));
+            }
+            result.put("routes", routes);
+        }
+        return result;
+    }
+
+    private static JSONObject toJSON(final PoolStats stats) throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("leased", stats.getLeased());
+        result.put("available", stats.getAvailable());
+        result.put("pending", stats.getPending());
+        result.put("max", stats.getMax());
+        return result;
+    }
+
+    private static RequestConfig requestConfig(final SubnodeConfiguration section, final RequestConfig defaults) {
+        return RequestConfig.copy(defaults)
+                .setConnectTimeout(section.getInt("connectTimeout", defaults.getConnectTimeout()))
+                .setSocketTimeout(section.getInt("socketTimeout", defaults.getSocketTimeout()))
+                .setConnectionRequestTimeout(section.getInt("connectionRequestTimeout",
+                        defaults.getConnectionRequestTimeout()))
+                .build();
+    }
+
+    private static String key(final String scheme, final String host, final int port) {
+        final int resolved = port != -1 ? port : "https".equalsIgnoreCase(scheme) ? 443 : 80;
+        return scheme.toLowerCase() + "://" + host.toLowerCase() + ":" + resolved;
+    }
+
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A compiled index function, turning one document into the Lucene documents
+ * to index for it. An instance is only used by one thread at a time.
+ *
+ * @author rnewson
+ */
+public interface IndexFunction {
+
+    /**
+     * @param extractions receives a future for each attachment that is still
+     *                    being extracted for the returned documents, which
+     *                    must not be indexed before the futures complete and
+     *                    {@link AttachmentExtractor#apply} has added their
+     *                    fields.
+     * @return the documents to index, empty if the document should not be
+     * indexed.
+     */
+    Collection<Document> convert(CouchDocument doc, ViewSettings defaults, Database database,
+                                 Collection<CompletableFuture<AttachmentExtractor.Fields>> extractions)
+            throws IOException, ParseException, JSONException;
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Compiles the index functions of views. A view picks its engine by name
+ * with its "engine" property; engines other than the built-in "javascript"
+ * one are found with {@link java.util.ServiceLoader}.
+ *
+ * @author rnewson
+ */
+public interface IndexFunctionEngine {
+
+    String getName();
+
+    IndexFunction compile(View view) throws IOException, JSONException;
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.mapping.MappingEngine;
+import com.github.rnewson.couchdb.lucene.rhino.RhinoEngine;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of index function engines.
+ *
+ * @author rnewson
+ */
+public final class IndexFunctionEngines {
+
+    public static final String DEFAULT_ENGINE = RhinoEngine.NAME;
+
+    private static final Map<String, IndexFunctionEngine> ENGINES = new ConcurrentHashMap<>();
+
+    static {
+        register(new RhinoEngine());
+        register(new MappingEngine());
+        for (final IndexFunctionEngine engine : ServiceLoader.load(IndexFunctionEngine.class)) {
+            register(engine);
+        }
+    }
+
+    public static void register(final IndexFunctionEngine engine) {
+        ENGINES.put(engine.getName(), engine);
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no engine of that name.
+     */
+    public static IndexFunctionEngine get(final String name) {
+        final IndexFunctionEngine result = ENGINES.get(name);
+        if (result == null) {
+            throw new IllegalArgumentException("No index function engine named " + name);
+        }
+        return result;
+    }
+
+    private IndexFunctionEngines() {
+        throw new InstantiationError("This class is not supposed to be instantiated.");
+    }
+
+}
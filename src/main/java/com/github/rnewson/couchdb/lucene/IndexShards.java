@@ -0,0 +1,406 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * The IndexWriters of one view. A view with "shards": N spreads its
+ * documents over N indexes by a hash of their _id. The updates of each shard
+ * are applied in order on a pool of lucene.shardThreads threads shared by all
+ * views, so analysis runs in parallel while the indexer converts the next
+ * documents, and searches run over all shards in parallel on a pool of
+ * lucene.searchThreads threads. An unsharded view writes and searches on the
+ * caller's thread.
+ * <p>
+ * A document the IndexWriter rejects is logged and skipped. Any other
+ * failure leaves the writer unusable and is reported by every later call.
+ *
+ * @author rnewson
+ */
+public final class IndexShards {
+
+    /**
+     * Updates queued per shard before the indexer waits for the shard to
+     * catch up.
+     */
+    private static final int QUEUE_DEPTH = 256;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexShards.class);
+
+    private static final ThreadPoolExecutor SEARCHERS = newPool("search");
+
+    private static final ThreadPoolExecutor WRITERS = newPool("shard");
+
+    /**
+     * The queued updates of one shard. At most one pool thread applies them
+     * at a time, in the order they were submitted.
+     */
+    private static final class Shard implements Runnable {
+
+        private final IndexWriter writer;
+
+        private final boolean threaded;
+
+        private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final Semaphore depth = new Semaphore(QUEUE_DEPTH, true);
+
+        private Shard(final IndexWriter writer, final boolean threaded) {
+            this.writer = writer;
+            this.threaded = threaded;
+        }
+
+        private void execute(final Runnable update) {
+            updates.add(update);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!updates.isEmpty() && scheduled.compareAndSet(false, true)) {
+                WRITERS.execute(this);
+            }
+        }
+
+        public void run() {
+            try {
+                Runnable update;
+                while ((update = updates.poll()) != null) {
+                    update.run();
+                }
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+
+        /**
+         * Waits until every queued update is applied.
+         */
+        private void drain() throws InterruptedIOException {
+            try {
+                depth.acquire(QUEUE_DEPTH);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            depth.release(QUEUE_DEPTH);
+        }
+
+    }
+
+    private interface Update {
+
+        void apply(IndexWriter writer) throws IOException;
+
+    }
+
+    public static synchronized void setIni(final HierarchicalINIConfiguration ini) {
+        resize(SEARCHERS, ini.getInt("lucene.searchThreads", defaultThreads()));
+        resize(WRITERS, ini.getInt("lucene.shardThreads", defaultThreads()));
+    }
+
+    private static void resize(final ThreadPoolExecutor pool, final int size) {
+        final int threads = Math.max(1, size);
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * @return the index directories of a view with this many shards; an
+     * unsharded view keeps its index in the view directory itself.
+     */
+    public static File[] shardDirs(final File viewDir, final int shards) {
+        if (shards == 1) {
+            return new File[]{viewDir};
+        }
+        final File[] result = new File[shards];
+        for (int i = 0; i < shards; i++) {
+            result[i] = new File(viewDir, "shard" + i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the reader of each shard in a reader from
+     * {@link #openReader(boolean)}.
+     */
+    public static List<DirectoryReader> shardReaders(final IndexReader reader) {
+        if (reader instanceof DirectoryReader) {
+            return Collections.singletonList((DirectoryReader) reader);
+        }
+        final List<DirectoryReader> result = new ArrayList<>();
+        for (final IndexReaderContext child : reader.getContext().children()) {
+            result.add((DirectoryReader) child.reader());
+        }
+        return result;
+    }
+
+    /**
+     * @return the shard of the document, in the range [0, shards).
+     */
+    public static int shardOf(final String id, final int shards) {
+        return (StringHelper.murmurhash3_x86_32(new BytesRef(id), 0) & Integer.MAX_VALUE) % shards;
+    }
+
+    private final Shard[] shards;
+
+    private volatile Throwable failure;
+
+    private volatile boolean closed;
+
+    public IndexShards(final IndexWriter... writers) {
+        this.shards = new Shard[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            shards[i] = new Shard(writers[i], writers.length > 1);
+        }
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    public IndexWriter getWriter(final int shard) {
+        return shards[shard].writer;
+    }
+
+    public void update(final String id, final Collection<Document> docs) throws IOException {
+        submit(id, new Update() {
+            public void apply(final IndexWriter writer) throws IOException {
+                writer.updateDocuments(new Term("_id", id), docs);
+            }
+        });
+    }
+
+    public void delete(final String id) throws IOException {
+        submit(id, new Update() {
+            public void apply(final IndexWriter writer) throws IOException {
+                writer.deleteDocuments(new Term("_id", id));
+            }
+        });
+    }
+
+    /**
+     * Waits until every queued update is applied.
+     *
+     * @throws IOException if an update failed.
+     */
+    public void drain() throws IOException {
+        for (final Shard shard : shards) {
+            if (shard.threaded) {
+                shard.drain();
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * @return a near real-time reader over all shards.
+     */
+    public IndexReader openReader(final boolean applyAllDeletes) throws IOException {
+        drain();
+        if (shards.length == 1) {
+            return DirectoryReader.open(shards[0].writer, applyAllDeletes, false);
+        }
+        final DirectoryReader[] readers = new DirectoryReader[shards.length];
+        boolean success = false;
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                readers[i] = DirectoryReader.open(shards[i].writer, applyAllDeletes, false);
+            }
+            final MultiReader result = new MultiReader(readers, true);
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(readers);
+            }
+        }
+    }
+
+    /**
+     * @return a searcher that searches the shards of the reader in parallel.
+     */
+    public IndexSearcher newSearcher(final IndexReader reader) {
+        return shards.length == 1 ? new IndexSearcher(reader) : new IndexSearcher(reader, SEARCHERS);
+    }
+
+    public void commit(final Map<String, String> userData) throws IOException {
+        drain();
+        for (final Shard shard : shards) {
+            shard.writer.setCommitData(userData);
+            shard.writer.commit();
+        }
+    }
+
+    public void forceMerge(final int maxNumSegments) throws IOException {
+        drain();
+        for (final Shard shard : shards) {
+            shard.writer.forceMerge(maxNumSegments, false);
+        }
+    }
+
+    public void forceMergeDeletes() throws IOException {
+        drain();
+        for (final Shard shard : shards) {
+            shard.writer.forceMergeDeletes(false);
+        }
+    }
+
+    public long ramBytesUsed() {
+        long result = 0;
+        for (final Shard shard : shards) {
+            result += shard.writer.ramBytesUsed();
+        }
+        return result;
+    }
+
+    /**
+     * Discards uncommitted changes and closes the writers.
+     */
+    public void rollback() throws IOException {
+        IOException first = null;
+        closed = true;
+        for (final Shard shard : shards) {
+            if (shard.threaded) {
+                shard.drain();
+            }
+            IndexingMemoryManager.unregister(shard.writer);
+            try {
+                shard.writer.rollback();
+            } catch (final IOException e) {
+                first = first == null ? e : first;
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    private void submit(final String id, final Update update) throws IOException {
+        checkFailure();
+        final Shard shard = shards[shardOf(id, shards.length)];
+        if (!shard.threaded) {
+            update.apply(shard.writer);
+            return;
+        }
+        try {
+            shard.depth.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        shard.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!closed && failure == null) {
+                        update.apply(shard.writer);
+                    }
+                } catch (final IllegalArgumentException e) {
+                    LOG.warn(id + " could not be indexed in " + shard.writer.getDirectory() + ": " + e.getMessage());
+                } catch (final IOException | RuntimeException e) {
+                    failure = e;
+                } finally {
+                    shard.depth.release();
+                }
+            }
+        });
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable e = failure;
+        if (e != null) {
+            throw new IOException("Update of a shard failed.", e);
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, "couchdb-lucene-" + name + "-" + THREADS.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+    private static ThreadPoolExecutor newPool(final String name) {
+        final ThreadPoolExecutor result = new ThreadPoolExecutor(defaultThreads(), defaultThreads(), 60, SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(name));
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    private static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public String toString() {
+        if (shards.length == 1) {
+            return shards[0].writer.getDirectory().toString();
+        }
+        final Directory[] dirs = new Directory[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            dirs[i] = shards[i].writer.getDirectory();
+        }
+        return Arrays.toString(dirs);
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares one indexing buffer between all IndexWriters. When the writers
+ * together hold more than lucene.indexingBufferMB, the largest ones are
+ * flushed until the total is back under budget. Adding up the writers costs
+ * one call per writer, so the total is only checked once every so many
+ * updates, at least as many as there are writers.
+ *
+ * @author rnewson
+ */
+public final class IndexingMemoryManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexingMemoryManager.class);
+
+    private static final Set<IndexWriter> WRITERS = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicBoolean FLUSHING = new AtomicBoolean();
+
+    /**
+     * The fewest updates between two checks of the total.
+     */
+    static final int CHECK_INTERVAL = 64;
+
+    private static final AtomicInteger UPDATES = new AtomicInteger();
+
+    private static volatile double budgetMB = defaultBudgetMB();
+
+    public static void setIni(final HierarchicalINIConfiguration ini) {
+        budgetMB = ini.getDouble("lucene.indexingBufferMB", defaultBudgetMB());
+    }
+
+    /**
+     * The RAM buffer for a single writer; it only flushes by itself if it
+     * would use the whole budget.
+     */
+    public static double getBudgetMB() {
+        return budgetMB;
+    }
+
+    public static void register(final IndexWriter writer) {
+        WRITERS.add(writer);
+    }
+
+    public static void unregister(final IndexWriter writer) {
+        WRITERS.remove(writer);
+    }
+
+    public static long ramBytesUsed() {
+        long result = 0;
+        for (final IndexWriter writer : WRITERS) {
+            result += writer.ramBytesUsed();
+        }
+        return result;
+    }
+
+    /**
+     * Called by indexing threads after each update; checks the budget once
+     * every {@link #CHECK_INTERVAL} updates, or once per writer if there
+     * are more.
+     */
+    public static void maybeFlush() {
+        if (UPDATES.incrementAndGet() < Math.max(CHECK_INTERVAL, WRITERS.size())) {
+            return;
+        }
+        UPDATES.set(0);
+        checkBudget();
+    }
+
+    /**
+     * Flushes the largest writers if the budget is exceeded. If another
+     * thread is already flushing this returns immediately.
+     */
+    static void checkBudget() {
+        final long budget = (long) (budgetMB * 1024 * 1024);
+        long used = ramBytesUsed();
+        if (used <= budget || !FLUSHING.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Snapshot the sizes so the order is stable while sorting.
+            final Map<IndexWriter, Long> sizes = new HashMap<>();
+            for (final IndexWriter writer : WRITERS) {
+                sizes.put(writer, writer.ramBytesUsed());
+            }
+            final List<IndexWriter> writers = new ArrayList<>(sizes.keySet());
+            Collections.sort(writers, new Comparator<IndexWriter>() {
+                public int compare(final IndexWriter a, final IndexWriter b) {
+                    return Long.compare(sizes.get(b), sizes.get(a));
+                }
+            });
+
+            for (final IndexWriter writer : writers) {
+                if (used <= budget) {
+                    break;
+                }
+                try {
+                    writer.flush();
+                    LOG.debug("Flushed " + writer.getDirectory() + " to free " + sizes.get(writer) + " bytes.");
+                } catch (final AlreadyClosedException e) {
+                    // Closed concurrently.
+                } catch (final IOException e) {
+                    LOG.warn("Failed to flush " + writer.getDirectory(), e);
+                }
+                used -= sizes.get(writer);
+            }
+        } finally {
+            FLUSHING.set(false);
+        }
+    }
+
+    public static JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("writers", WRITERS.size());
+        result.put("budget_mb", budgetMB);
+        result.put("ram_bytes_used", ramBytesUsed());
+        return result;
+    }
+
+    private static double defaultBudgetMB() {
+        return Math.max(16.0, Runtime.getRuntime().maxMemory() / 10.0 / 1024 / 1024);
+    }
+
+    private IndexingMemoryManager() {
+        throw new InstantiationError("This class is not supposed to be instantiated.");
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs any number of DatabaseIndexers on a fixed pool of threads. Each run
+ * indexes at most one batch of changes, then the indexer goes to the back of
+ * the queue; indexers that are caught up poll again after
+ * lucene.pollInterval milliseconds, doubling the wait each time they find no
+ * changes, up to lucene.maxPollInterval milliseconds.
+ *
+ * @author rnewson
+ */
+public final class IndexingScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexingScheduler.class);
+
+    private final class Task implements Runnable {
+
+        private final DatabaseIndexer indexer;
+
+        private ScheduledFuture<?> future;
+
+        private boolean running;
+
+        private boolean wakeup;
+
+        private long delay = pollInterval;
+
+        private Task(final DatabaseIndexer indexer) {
+            this.indexer = indexer;
+        }
+
+        public void run() {
+            synchronized (this) {
+                running = true;
+                wakeup = false;
+            }
+            try {
+                indexer.run();
+            } catch (final RuntimeException e) {
+                LOG.warn("Indexer failed.", e);
+            }
+            synchronized (this) {
+                running = false;
+                if (indexer.isClosed()) {
+                    tasks.remove(indexer);
+                } else {
+                    delay = indexer.isIdle() ? Math.max(pollInterval, Math.min(delay * 2, maxPollInterval)) : pollInterval;
+                    schedule(indexer.isBehind() || wakeup ? 0 : delay);
+                }
+            }
+        }
+
+        private synchronized void schedule(final long delay) {
+            future = executor.schedule(this, delay, MILLISECONDS);
+        }
+
+        private synchronized void wakeup() {
+            if (running) {
+                wakeup = true;
+            } else if (future != null && future.cancel(false)) {
+                schedule(0);
+            }
+        }
+
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final long pollInterval;
+
+    private final long maxPollInterval;
+
+    private final Map<DatabaseIndexer, Task> tasks = new ConcurrentHashMap<>();
+
+    public IndexingScheduler(final HierarchicalINIConfiguration ini) {
+        final int threads = Math.max(1, ini.getInt("lucene.indexingThreads",
+                Runtime.getRuntime().availableProcessors()));
+        this.pollInterval = Math.max(0, ini.getLong("lucene.pollInterval", 1000));
+        this.maxPollInterval = Math.max(pollInterval, ini.getLong("lucene.maxPollInterval", 60000));
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, "couchdb-lucene-indexer-" + counter.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public void submit(final DatabaseIndexer indexer) {
+        final Task task = new Task(indexer);
+        if (tasks.putIfAbsent(indexer, task) == null) {
+            task.schedule(0);
+        }
+    }
+
+    /**
+     * Runs the indexer as soon as a thread is free instead of waiting for
+     * its next poll.
+     */
+    public void wakeup(final DatabaseIndexer indexer) {
+        final Task task = tasks.get(indexer);
+        if (task != null) {
+            task.wakeup();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("indexers", tasks.size());
+        result.put("threads", executor.getCorePoolSize());
+        result.put("active", executor.getActiveCount());
+        return result;
+    }
+
+}
@@ -21,11 +21,13 @@ import com.github.rnewson.couchdb.lucene.couchdb.Database;
 import com.github.rnewson.couchdb.lucene.couchdb.DesignDocument;
 import com.github.rnewson.couchdb.lucene.couchdb.View;
 import com.github.rnewson.couchdb.lucene.util.ServletUtils;
+import org.apache.commons.configuration.AbstractFileConfiguration;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.commons.configuration.event.ConfigurationListener;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.http.client.HttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +42,16 @@ import jakarta.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class LuceneServlet extends HttpServlet {
 
@@ -50,19 +61,35 @@ public final class LuceneServlet extends HttpServlet {
 
     private final HttpClient client;
 
-    private final Map<Database, DatabaseIndexer> indexers = new HashMap<>();
+    private final ConcurrentMap<Database, CompletableFuture<DatabaseIndexer>> indexers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Database handles by "key/dbname", dropped when the ini file reloads.
+     */
+    private final ConcurrentMap<String, Database> databases = new ConcurrentHashMap<>();
 
     private final HierarchicalINIConfiguration ini;
 
     private final File root;
 
-    private final Map<Database, Thread> threads = new HashMap<>();
+    private final IndexingScheduler scheduler;
+
+    private final DistributedSearch distributed;
+
+    private Timer evictionTimer;
+
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
 
     public LuceneServlet() throws ConfigurationException, IOException {
         final Config config = new Config();
         this.client = config.getClient();
         this.root = config.getDir();
         this.ini = config.getConfiguration();
+        this.scheduler = new IndexingScheduler(ini);
+        this.distributed = new DistributedSearch(client, ini);
+        watchConfiguration();
+        startEvictionTimer();
     }
 
     public LuceneServlet(final HttpClient client, final File root,
@@ -70,6 +97,137 @@ public final class LuceneServlet extends HttpServlet {
         this.client = client;
         this.root = root;
         this.ini = ini;
+        this.scheduler = new IndexingScheduler(ini);
+        this.distributed = new DistributedSearch(client, ini);
+        watchConfiguration();
+        startEvictionTimer();
+    }
+
+    @Override
+    public void destroy() {
+        evictionTimer.cancel();
+        scheduler.shutdown();
+        super.destroy();
+    }
+
+    private void watchConfiguration() {
+        ini.addConfigurationListener(new ConfigurationListener() {
+            public void configurationChanged(final ConfigurationEvent event) {
+                if (event.getType() == AbstractFileConfiguration.EVENT_RELOAD && !event.isBeforeUpdate()) {
+                    databases.clear();
+                }
+            }
+        });
+    }
+
+    private void startEvictionTimer() {
+        evictionTimer = new Timer("couchdb-lucene-eviction", true);
+        final long idleMillis = getIdleTimeout();
+        if (idleMillis <= 0) {
+            return;
+        }
+        final long period = Math.max(1000, idleMillis / 2);
+        evictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdleIndexers();
+            }
+        }, period, period);
+    }
+
+    private long getIdleTimeout() {
+        return ini.getLong("lucene.idleTimeout", 0) * 1000;
+    }
+
+    private synchronized void evictIdleIndexers() {
+        final long idleNanos = TimeUnit.MILLISECONDS.toNanos(getIdleTimeout());
+        final long now = System.nanoTime();
+        for (final Entry<Database, CompletableFuture<DatabaseIndexer>> entry : indexers.entrySet()) {
+            final DatabaseIndexer indexer = ready(entry.getValue());
+            if (indexer != null && now - indexer.getLastAccess() >= idleNanos) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private int getMaxIndexers() {
+        final int result = ini.getInt("lucene.maxIndexers", 0);
+        return result > 0 ? result : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Evicts the least recently used indexers on the eviction thread, so the
+     * request that opened one too many does not wait for another database to
+     * commit.
+     */
+    private void scheduleEviction(final Database keep) {
+        if (!evictionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            evictionTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    evictionScheduled.set(false);
+                    evictLeastRecentlyUsed(keep);
+                }
+            }, 0);
+        } catch (final IllegalStateException e) {
+            // Timer cancelled, the servlet is shutting down.
+            evictionScheduled.set(false);
+        }
+    }
+
+    private synchronized void evictLeastRecentlyUsed(final Database keep) {
+        while (indexers.size() > getMaxIndexers()) {
+            Entry<Database, CompletableFuture<DatabaseIndexer>> lru = null;
+            long lruAccess = Long.MAX_VALUE;
+            for (final Entry<Database, CompletableFuture<DatabaseIndexer>> entry : indexers.entrySet()) {
+                final DatabaseIndexer indexer = ready(entry.getValue());
+                if (indexer == null || entry.getKey().equals(keep)) {
+                    continue;
+                }
+                if (lru == null || indexer.getLastAccess() < lruAccess) {
+                    lru = entry;
+                    lruAccess = indexer.getLastAccess();
+                }
+            }
+            if (lru == null || !evict(lru.getKey(), lru.getValue())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Commits and closes an indexer. The indexer stays registered until it
+     * has closed, so the database is not reopened while its indexes are
+     * still locked by the old IndexWriters.
+     *
+     * @return true if the indexer closed and was removed.
+     */
+    private synchronized boolean evict(final Database database,
+                                       final CompletableFuture<DatabaseIndexer> future) {
+        final DatabaseIndexer indexer = ready(future);
+        if (indexer != null) {
+            LOG.info("Evicting indexer for " + database);
+            indexer.evict();
+            scheduler.wakeup(indexer);
+            if (!indexer.awaitClose(ini.getLong("lucene.evictionTimeout", 30) * 1000)) {
+                LOG.warn("Indexer for " + database + " did not stop in time.");
+                return false;
+            }
+        }
+        return indexers.remove(database, future);
+    }
+
+    /**
+     * @return the indexer if it has been created, otherwise null.
+     */
+    private static DatabaseIndexer ready(final CompletableFuture<DatabaseIndexer> future) {
+        if (!future.isDone() || future.isCompletedExceptionally()) {
+            return null;
+        }
+        return future.getNow(null);
     }
 
     private void cleanup(final HttpServletRequest req,
@@ -106,6 +264,7 @@ public final class LuceneServlet extends HttpServlet {
         }
 
         // Delete all directories except the keepers.
+        dbKeep.add(ExtractionCache.DIRNAME);
         for (final File dir : root.listFiles()) {
             if (!dbKeep.contains(dir.getName())) {
                 LOG.info("Cleaning old index at " + dir);
@@ -118,7 +277,10 @@ public final class LuceneServlet extends HttpServlet {
     }
 
     private Couch getCouch(final HttpServletRequest req) throws IOException {
-        final String sectionName = new PathParts(req).getKey();
+        return getCouch(PathParts.of(req).getKey());
+    }
+
+    private Couch getCouch(final String sectionName) throws IOException {
         final Configuration section = ini.getSection(sectionName);
         if (!section.containsKey("url")) {
             throw new FileNotFoundException(sectionName + " is missing or has no url parameter.");
@@ -126,32 +288,136 @@ public final class LuceneServlet extends HttpServlet {
         return new Couch(client, section.getString("url"));
     }
 
-    private synchronized DatabaseIndexer getIndexer(final Database database)
-            throws IOException, JSONException {
-        DatabaseIndexer result = indexers.get(database);
-        Thread thread = threads.get(database);
-        if (result == null || thread == null || !thread.isAlive()) {
-            result = new DatabaseIndexer(client, root, database, ini);
-            thread = new Thread(result);
-            thread.start();
-            result.awaitInitialization();
-            if (result.isClosed()) {
+    /**
+     * Returns the indexer for the database, starting it if needed. Only one
+     * caller starts a given database, the others wait for it; callers for
+     * other databases are not blocked.
+     *
+     * @param timeoutMillis how long to wait for initialization, 0 means forever.
+     * @return the indexer, or null if it failed to initialize.
+     * @throws TimeoutException if initialization did not finish in time.
+     */
+    private DatabaseIndexer getIndexer(final Database database, final long timeoutMillis)
+            throws IOException, JSONException, TimeoutException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            CompletableFuture<DatabaseIndexer> future = indexers.get(database);
+            boolean started = false;
+            if (future == null) {
+                final CompletableFuture<DatabaseIndexer> placeholder = new CompletableFuture<>();
+                future = indexers.putIfAbsent(database, placeholder);
+                if (future == null) {
+                    future = placeholder;
+                    started = true;
+                    startIndexer(database, placeholder);
+                }
+            }
+
+            final DatabaseIndexer result = await(future, timeoutMillis, deadline);
+            if (!result.awaitInitialization(timeoutMillis == 0 ? 0 : remaining(deadline))) {
+                throw new TimeoutException("Timed out initializing " + database);
+            }
+            if (!result.isClosed()) {
+                result.touch();
+                if (indexers.size() > getMaxIndexers()) {
+                    scheduleEviction(database);
+                }
+                return result;
+            }
+            // The old indexer may still hold its IndexWriters.
+            if (!result.awaitClose(timeoutMillis == 0 ? 0 : remaining(deadline))) {
+                throw new TimeoutException("Timed out closing " + database);
+            }
+            indexers.remove(database, future);
+            if (started) {
                 return null;
-            } else {
-                indexers.put(database, result);
-                threads.put(database, thread);
             }
         }
+    }
 
+    private void startIndexer(final Database database,
+                              final CompletableFuture<DatabaseIndexer> placeholder)
+            throws IOException, JSONException {
+        try {
+            final DatabaseIndexer indexer = new DatabaseIndexer(client, root, database, ini, scheduler);
+            scheduler.submit(indexer);
+            placeholder.complete(indexer);
+        } catch (final IOException | JSONException | RuntimeException e) {
+            indexers.remove(database, placeholder);
+            placeholder.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static DatabaseIndexer await(final CompletableFuture<DatabaseIndexer> future,
+                                         final long timeoutMillis, final long deadline)
+            throws IOException, JSONException, TimeoutException {
+        try {
+            return timeoutMillis == 0 ? future.get() : future.get(remaining(deadline), TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static long remaining(final long deadline) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Returns the indexer for the request, or sends an error response and
+     * returns null.
+     */
+    private DatabaseIndexer getIndexer(final HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException, JSONException {
+        final Database database = getDatabase(PathParts.of(req));
+        final DatabaseIndexer result;
+        try {
+            result = getIndexer(database, ini.getLong("lucene.initTimeout", 0));
+        } catch (final TimeoutException e) {
+            ServletUtils.sendJsonError(req, resp, 503, "index_initializing");
+            return null;
+        }
+        if (result == null) {
+            ServletUtils.sendJsonError(req, resp, 500, "error_creating_index");
+        }
         return result;
     }
 
-    private DatabaseIndexer getIndexer(final HttpServletRequest req)
+    private Database getDatabase(final PathParts parts) throws IOException {
+        final String name = parts.getKey() + "/" + parts.getDatabaseName();
+        Database result = databases.get(name);
+        if (result == null) {
+            result = getCouch(parts.getKey()).getDatabase(parts.getDatabaseName());
+            final Database existing = databases.putIfAbsent(name, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the parsed path of the request, or sends an error response and
+     * returns null.
+     */
+    private PathParts getPathParts(final HttpServletRequest req, final HttpServletResponse resp)
             throws IOException, JSONException {
-        final Couch couch = getCouch(req);
-        final Database database = couch.getDatabase(new PathParts(req)
-                .getDatabaseName());
-        return getIndexer(database);
+        try {
+            return PathParts.of(req);
+        } catch (final IllegalArgumentException e) {
+            ServletUtils.sendJsonError(req, resp, 400, "bad_request");
+            return null;
+        }
     }
 
     private void handleWelcomeReq(final HttpServletRequest req,
@@ -161,6 +427,11 @@ public final class LuceneServlet extends HttpServlet {
         final JSONObject welcome = new JSONObject();
         welcome.put("couchdb-lucene", "Welcome");
         welcome.put("version", p.getImplementationVersion());
+        welcome.put("merges", ThrottledMergeScheduler.status());
+        welcome.put("indexing_buffer", IndexingMemoryManager.status());
+        welcome.put("indexing", scheduler.status());
+        welcome.put("extraction", AttachmentExtractor.INSTANCE.status());
+        welcome.put("http", HttpClientFactory.status());
         ServletUtils.sendJson(req, resp, welcome);
     }
 
@@ -177,14 +448,21 @@ public final class LuceneServlet extends HttpServlet {
 
     private void doGetInternal(final HttpServletRequest req, final HttpServletResponse resp)
             throws ServletException, IOException, JSONException {
-        switch (StringUtils.countMatches(req.getRequestURI(), "/")) {
+        final PathParts parts = getPathParts(req, resp);
+        if (parts == null) {
+            return;
+        }
+        switch (parts.getDepth()) {
             case 1:
                 handleWelcomeReq(req, resp);
                 return;
             case 5:
-                final DatabaseIndexer indexer = getIndexer(req);
+                if (distributed.isDistributed(req)) {
+                    distributed.search(req, resp);
+                    return;
+                }
+                final DatabaseIndexer indexer = getIndexer(req, resp);
                 if (indexer == null) {
-                    ServletUtils.sendJsonError(req, resp, 500, "error_creating_index");
                     return;
                 }
 
@@ -212,24 +490,34 @@ public final class LuceneServlet extends HttpServlet {
 
     private void doPostInternal(final HttpServletRequest req, final HttpServletResponse resp)
             throws IOException, JSONException {
-        switch (StringUtils.countMatches(req.getRequestURI(), "/")) {
+        final PathParts parts = getPathParts(req, resp);
+        if (parts == null) {
+            return;
+        }
+        switch (parts.getDepth()) {
             case 3:
-                if (req.getPathInfo().endsWith("/_cleanup")) {
+                if ("_cleanup".equals(parts.getCommand())) {
                     cleanup(req, resp);
                     return;
                 }
                 break;
             case 5: {
-                final DatabaseIndexer indexer = getIndexer(req);
+                if (distributed.isDistributed(req)) {
+                    distributed.search(req, resp);
+                    return;
+                }
+                final DatabaseIndexer indexer = getIndexer(req, resp);
                 if (indexer == null) {
-                    ServletUtils.sendJsonError(req, resp, 500, "error_creating_index");
                     return;
                 }
                 indexer.search(req, resp);
-                break;
+                return;
             }
             case 6:
-                final DatabaseIndexer indexer = getIndexer(req);
+                final DatabaseIndexer indexer = getIndexer(req, resp);
+                if (indexer == null) {
+                    return;
+                }
                 indexer.admin(req, resp);
                 return;
         }
@@ -16,11 +16,18 @@
 
 package com.github.rnewson.couchdb.lucene;
 
+import org.apache.commons.lang.StringUtils;
+
 import jakarta.servlet.http.HttpServletRequest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class PathParts {
+/**
+ * The parts of a request path, parsed once per request.
+ *
+ * @author rnewson
+ */
+public final class PathParts {
 
     private static final Pattern QUERY_REGEX = Pattern
             .compile("^/([^/]+)/([^/]+)/_design/([^/]+)/([^/]+)/?([^/]+)?");
@@ -28,43 +35,86 @@ public class PathParts {
     private static final Pattern GLOBAL_REGEX = Pattern
             .compile("^/([^/]+)/([^/]+)/((([^/]+)))");
 
-    private Matcher matcher;
+    private static final String ATTRIBUTE = PathParts.class.getName();
+
+    private final int depth;
+
+    private final String key;
+
+    private final String databaseName;
+
+    private final String designDocumentName;
+
+    private final String viewName;
+
+    private final String command;
+
+    /**
+     * Returns the parts of the request's path, parsing it on first use.
+     */
+    public static PathParts of(final HttpServletRequest req) {
+        PathParts result = (PathParts) req.getAttribute(ATTRIBUTE);
+        if (result == null) {
+            result = new PathParts(req);
+            req.setAttribute(ATTRIBUTE, result);
+        }
+        return result;
+    }
 
     public PathParts(final HttpServletRequest req) {
         this(req.getRequestURI());
     }
 
+    /**
+     * @throws IllegalArgumentException if the path is not the root and does
+     *                                  not name a database command or view.
+     */
     public PathParts(final String path) {
-        matcher = QUERY_REGEX.matcher(path);
+        this.depth = StringUtils.countMatches(path, "/");
+        if (depth == 1) {
+            key = databaseName = designDocumentName = viewName = command = null;
+            return;
+        }
+
+        Matcher matcher = QUERY_REGEX.matcher(path);
         if (!matcher.matches()) {
             matcher = GLOBAL_REGEX.matcher(path);
         }
         if (!matcher.matches()) {
             throw new IllegalArgumentException(path + " is not a valid path");
         }
+        this.key = matcher.group(1);
+        this.databaseName = matcher.group(2);
+        this.designDocumentName = "_design/" + matcher.group(3);
+        this.viewName = matcher.group(4);
+        this.command = matcher.groupCount() == 5 ? matcher.group(5) : null;
+    }
+
+    /**
+     * @return the number of slashes in the path.
+     */
+    public int getDepth() {
+        return depth;
     }
 
     public String getKey() {
-        return matcher.group(1);
+        return key;
     }
 
     public String getDesignDocumentName() {
-        return "_design/" + matcher.group(3);
+        return designDocumentName;
     }
 
     public String getDatabaseName() {
-        return matcher.group(2);
+        return databaseName;
     }
 
     public String getViewName() {
-        return matcher.group(4);
+        return viewName;
     }
 
     public String getCommand() {
-        if (matcher.groupCount() != 5) {
-            return null;
-        }
-        return matcher.group(5);
+        return command;
     }
 
     @Override
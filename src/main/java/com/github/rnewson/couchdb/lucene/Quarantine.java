@@ -0,0 +1,89 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The documents an index skips because its index function ran out of
+ * budget on them, by id and revision. Kept in quarantine.json in the index
+ * directory so that reindexing does not run into the same documents again;
+ * a new revision of a document is tried again.
+ *
+ * @author rnewson
+ */
+public final class Quarantine {
+
+    private static final String FILENAME = "quarantine.json";
+
+    private final File file;
+
+    private final Map<String, String> revs = new LinkedHashMap<>();
+
+    public Quarantine(final File dir) throws IOException, JSONException {
+        this.file = new File(dir, FILENAME);
+        if (file.exists()) {
+            final JSONObject json = new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+            final Iterator<?> it = json.keys();
+            while (it.hasNext()) {
+                final String id = (String) it.next();
+                revs.put(id, json.getString(id));
+            }
+        }
+    }
+
+    public synchronized boolean contains(final String id, final String rev) {
+        final String result = revs.get(id);
+        return result != null && result.equals(rev);
+    }
+
+    public synchronized void add(final String id, final String rev) throws IOException, JSONException {
+        revs.put(id, rev);
+        write();
+    }
+
+    public synchronized void remove(final String id) throws IOException, JSONException {
+        if (revs.remove(id) != null) {
+            write();
+        }
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        final JSONObject result = new JSONObject();
+        for (final Map.Entry<String, String> entry : revs.entrySet()) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private void write() throws IOException, JSONException {
+        final File tmp = new File(file.getParentFile(), FILENAME + ".tmp");
+        FileUtils.writeStringToFile(tmp, toJSON().toString(), "UTF-8");
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
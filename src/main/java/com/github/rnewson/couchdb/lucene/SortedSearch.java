@@ -0,0 +1,81 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+
+/**
+ * Runs a sorted search, stopping early in segments whose index sort matches
+ * the requested sort.
+ *
+ * @author rnewson
+ */
+public final class SortedSearch {
+
+    private final TopFieldDocs topDocs;
+
+    private final boolean early;
+
+    private final boolean terminatedEarly;
+
+    private SortedSearch(final TopFieldDocs topDocs, final boolean early, final boolean terminatedEarly) {
+        this.topDocs = topDocs;
+        this.early = early;
+        this.terminatedEarly = terminatedEarly;
+    }
+
+    public static boolean canEarlyTerminate(final Sort sort, final Sort indexSort) {
+        return indexSort != null && EarlyTerminatingSortingCollector.canEarlyTerminate(sort, indexSort);
+    }
+
+    /**
+     * Returns the top n matches of the query in sort order. If the index is
+     * sorted like the query, collection stops after n hits in each segment
+     * and the total is then a lower bound.
+     */
+    public static SortedSearch search(final IndexSearcher searcher, final Query query, final Sort sort,
+                                      final Sort indexSort, final int n) throws IOException {
+        if (!canEarlyTerminate(sort, indexSort)) {
+            return new SortedSearch(searcher.search(query, n, sort), false, false);
+        }
+        final TopFieldCollector collector = TopFieldCollector.create(sort, n, true, false, false);
+        final EarlyTerminatingSortingCollector earlyCollector =
+                new EarlyTerminatingSortingCollector(collector, sort, n);
+        searcher.search(query, earlyCollector);
+        return new SortedSearch((TopFieldDocs) collector.topDocs(), true, earlyCollector.terminatedEarly());
+    }
+
+    public TopFieldDocs getTopDocs() {
+        return topDocs;
+    }
+
+    /**
+     * Whether the index sort allowed collection to stop early.
+     */
+    public boolean isEarly() {
+        return early;
+    }
+
+    /**
+     * Whether the total hit count covers every match.
+     */
+    public boolean isTotalExact() {
+        return !terminatedEarly;
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A merge scheduler for one IndexWriter that takes part in process-wide merge
+ * control. Running merges are capped across all indexes and their I/O rate is
+ * lowered while the number of in-flight searches is high.
+ * <p>
+ * A merge thread is only started once a global permit has been taken. While
+ * none is free, merges stay pending in their writer and no thread waits; the
+ * writer is asked to merge again when a permit is released, so a busy index
+ * never stalls the indexing of another.
+ *
+ * @author rnewson
+ */
+public final class ThrottledMergeScheduler extends ConcurrentMergeScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThrottledMergeScheduler.class);
+
+    private static final Map<OneMerge, Directory> RUNNING = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger SEARCHES = new AtomicInteger();
+
+    private static final Map<OneMerge, Semaphore> HELD = new ConcurrentHashMap<>();
+
+    private static final Set<IndexWriter> WAITING = Collections.newSetFromMap(new ConcurrentHashMap<IndexWriter, Boolean>());
+
+    private static final ExecutorService RETRY = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            final Thread result = new Thread(r, "couchdb-lucene-merge-retry");
+            result.setDaemon(true);
+            return result;
+        }
+    });
+
+    private static volatile double appliedMBPerSec = Double.NaN;
+
+    private static volatile Semaphore permits = new Semaphore(defaultMaxMerges());
+
+    private static volatile int maxMerges = defaultMaxMerges();
+
+    private static volatile int mergesPerIndex = 2;
+
+    private static volatile double mbPerSec = Double.POSITIVE_INFINITY;
+
+    private static volatile double busyMBPerSec = 10.0;
+
+    private static volatile int busySearches = 4;
+
+    public static synchronized void setIni(final HierarchicalINIConfiguration ini) {
+        maxMerges = Math.max(1, ini.getInt("lucene.maxConcurrentMerges", defaultMaxMerges()));
+        permits = new Semaphore(maxMerges);
+        mergesPerIndex = Math.max(1, ini.getInt("lucene.maxMergesPerIndex", 2));
+        mbPerSec = ini.getDouble("lucene.mergeMBPerSec", Double.POSITIVE_INFINITY);
+        busyMBPerSec = ini.getDouble("lucene.busyMergeMBPerSec", 10.0);
+        busySearches = Math.max(1, ini.getInt("lucene.busySearches", 4));
+        applyRate();
+        retryWaiting();
+    }
+
+    /**
+     * Called when a search starts; merges are throttled while the number of
+     * concurrent searches is at or above lucene.busySearches.
+     */
+    public static void searchStarted() {
+        SEARCHES.incrementAndGet();
+        applyRate();
+    }
+
+    public static void searchFinished() {
+        SEARCHES.decrementAndGet();
+        applyRate();
+    }
+
+    public static double currentMBPerSec() {
+        return SEARCHES.get() >= busySearches ? Math.min(mbPerSec, busyMBPerSec) : mbPerSec;
+    }
+
+    public static JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("active", RUNNING.size());
+        result.put("waiting", WAITING.size());
+        result.put("max", maxMerges);
+        result.put("searches", SEARCHES.get());
+        final double rate = currentMBPerSec();
+        if (!Double.isInfinite(rate)) {
+            result.put("mb_per_sec", rate);
+        }
+        return result;
+    }
+
+    public static JSONArray activeMerges(final Directory dir) throws JSONException {
+        final JSONArray result = new JSONArray();
+        for (final Entry<OneMerge, Directory> entry : RUNNING.entrySet()) {
+            if (entry.getValue() != dir) {
+                continue;
+            }
+            final OneMerge merge = entry.getKey();
+            final JSONObject row = new JSONObject();
+            row.put("segments", merge.segments.size());
+            row.put("docs", merge.totalMaxDoc);
+            row.put("estimated_bytes", merge.estimatedMergeBytes);
+            row.put("bytes_written", merge.rateLimiter.getTotalBytesWritten());
+            result.put(row);
+        }
+        return result;
+    }
+
+    /**
+     * The rate last given to running merges.
+     */
+    static double appliedMBPerSec() {
+        return appliedMBPerSec;
+    }
+
+    /**
+     * Gives running merges the rate for the current number of searches. Cheap
+     * unless the rate changed.
+     */
+    private static void applyRate() {
+        if (Double.compare(currentMBPerSec(), appliedMBPerSec) == 0) {
+            return;
+        }
+        synchronized (ThrottledMergeScheduler.class) {
+            // Computed again under the lock, so the last update wins.
+            final double rate = currentMBPerSec();
+            appliedMBPerSec = rate;
+            for (final OneMerge merge : RUNNING.keySet()) {
+                merge.rateLimiter.setMBPerSec(rate);
+            }
+        }
+    }
+
+    /**
+     * Asks the writers whose merges are waiting for a permit to merge again.
+     */
+    private static void retryWaiting() {
+        if (WAITING.isEmpty()) {
+            return;
+        }
+        RETRY.execute(new Runnable() {
+            public void run() {
+                for (final IndexWriter writer : WAITING) {
+                    if (!WAITING.remove(writer)) {
+                        continue;
+                    }
+                    try {
+                        writer.maybeMerge();
+                    } catch (final AlreadyClosedException e) {
+                        // Nothing left to merge.
+                    } catch (final IOException e) {
+                        LOG.warn("Failed to start merges for " + writer.getDirectory(), e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static int defaultMaxMerges() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * The global permit taken for the next merge thread of this writer.
+     */
+    private Semaphore reserved;
+
+    public ThrottledMergeScheduler() {
+        // Lucene pauses merges beyond the thread count, a paused merge must not hold a global permit.
+        setMaxMergesAndThreads(mergesPerIndex, mergesPerIndex);
+        disableAutoIOThrottle();
+    }
+
+    @Override
+    public synchronized void merge(final IndexWriter writer, final MergeTrigger trigger,
+                                   final boolean newMergesFound) throws IOException {
+        try {
+            super.merge(writer, trigger, newMergesFound);
+        } finally {
+            // No merge was left to take the permit.
+            if (reserved != null) {
+                reserved.release();
+                reserved = null;
+                retryWaiting();
+            }
+        }
+    }
+
+    /**
+     * Called before each merge thread is started; takes a global permit for
+     * it, or stops starting threads until one is released.
+     */
+    @Override
+    protected synchronized boolean maybeStall(final IndexWriter writer) {
+        if (!super.maybeStall(writer)) {
+            return false;
+        }
+        if (reserved != null || !writer.hasPendingMerges()) {
+            return true;
+        }
+        final Semaphore semaphore = permits;
+        if (semaphore.tryAcquire()) {
+            reserved = semaphore;
+            return true;
+        }
+        WAITING.add(writer);
+        // A permit may have been released before the writer was added.
+        if (semaphore.tryAcquire()) {
+            WAITING.remove(writer);
+            reserved = semaphore;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected synchronized MergeThread getMergeThread(final IndexWriter writer, final OneMerge merge)
+            throws IOException {
+        final MergeThread result = super.getMergeThread(writer, merge);
+        if (reserved != null) {
+            HELD.put(merge, reserved);
+            reserved = null;
+        }
+        return result;
+    }
+
+    @Override
+    protected void doMerge(final IndexWriter writer, final OneMerge merge) throws IOException {
+        Semaphore semaphore = HELD.remove(merge);
+        if (semaphore == null) {
+            // Registered after maybeStall looked; rare, so just wait.
+            semaphore = permits;
+            try {
+                semaphore.acquire();
+            } catch (final InterruptedException e) {
+                throw new ThreadInterruptedException(e);
+            }
+        }
+        RUNNING.put(merge, writer.getDirectory());
+        try {
+            merge.rateLimiter.setMBPerSec(currentMBPerSec());
+            super.doMerge(writer, merge);
+        } finally {
+            RUNNING.remove(merge);
+            semaphore.release();
+            retryWaiting();
+        }
+    }
+
+    @Override
+    protected synchronized void updateMergeThreads() {
+        super.updateMergeThreads();
+        // The superclass resets the rate of our merges.
+        final double rate = currentMBPerSec();
+        for (final OneMerge merge : RUNNING.keySet()) {
+            if (merge.rateLimiter.getMBPerSec() > rate) {
+                merge.rateLimiter.setMBPerSec(rate);
+            }
+        }
+    }
+
+}
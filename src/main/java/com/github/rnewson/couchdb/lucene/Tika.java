@@ -16,20 +16,57 @@
 
 package com.github.rnewson.couchdb.lucene;
 
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.lucene.document.Document;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.fork.ParserFactoryFactory;
 import org.apache.tika.metadata.DublinCore;
 import org.apache.tika.metadata.HttpHeaders;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.metadata.Property;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xml.sax.SAXException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 import static com.github.rnewson.couchdb.lucene.util.Utils.text;
 
+/**
+ * Extracts text and Dublin Core metadata from attachments. Parsing runs in
+ * this JVM unless lucene.forkExtraction is set, in which case it runs in a
+ * pool of lucene.forkPoolSize worker JVMs with a heap of lucene.forkHeap.
+ * A worker is replaced after lucene.forkMaxDocuments attachments, and after
+ * a crash, so leaks and large allocations in parsers never reach the heap
+ * used for searching.
+ *
+ * Nothing is loaded until the first attachment is parsed. Operators can
+ * limit extraction to the media types in lucene.extractionTypes and load
+ * only the parser classes in lucene.extractionParsers.
+ *
+ * @author rnewson
+ */
 public final class Tika {
 
     public static final Tika INSTANCE = new Tika();
@@ -38,60 +75,215 @@ public final class Tika {
 
     private static final Logger log = LoggerFactory.getLogger(Tika.class);
 
-    private final org.apache.tika.Tika tika = new org.apache.tika.Tika();
+    private HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+
+    private volatile Parser parser;
+
+    private ForkParser fork;
+
+    private volatile Set<String> types = Collections.emptySet();
+
+    private volatile int maxChars = -1;
 
     private Tika() {
-        tika.setMaxStringLength(-1);
+    }
+
+    public synchronized void setIni(final HierarchicalINIConfiguration ini) {
+        this.ini = ini;
+        maxChars = ini.getInt("lucene.maxExtractedChars", -1);
+        final Set<String> types = new HashSet<>();
+        for (final String type : ini.getStringArray("lucene.extractionTypes")) {
+            if (!type.trim().isEmpty()) {
+                types.add(type.trim().toLowerCase());
+            }
+        }
+        this.types = Collections.unmodifiableSet(types);
+
+        // Built again on next use.
+        final ForkParser previous = fork;
+        fork = null;
+        parser = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @return false if lucene.extractionTypes is set and does not list the
+     * content type, either exactly or as type/*.
+     */
+    public boolean accepts(final String contentType) {
+        final Set<String> types = this.types;
+        if (types.isEmpty()) {
+            return true;
+        }
+        final MediaType type = contentType == null ? null : MediaType.parse(contentType);
+        if (type == null) {
+            return false;
+        }
+        return types.contains(type.getBaseType().toString()) || types.contains(type.getType() + "/*");
+    }
+
+    public synchronized JSONObject status() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("initialized", parser != null);
+        result.put("forked", fork != null);
+        if (fork != null) {
+            result.put("pool_size", fork.getPoolSize());
+        }
+        if (!types.isEmpty()) {
+            result.put("types", types);
+        }
+        return result;
     }
 
     public void parse(final InputStream in, final String contentType, final String fieldName, final Document doc)
             throws IOException {
+        final StringWriter text = new StringWriter();
+        final JSONObject metadata = extract(in, contentType, text);
+        if (metadata != null) {
+            doc.add(text(fieldName, text.toString(), false));
+            addMetadata(metadata, doc);
+        }
+    }
+
+    /**
+     * Parses an attachment, writing its body text as Tika produces it. The
+     * text stops after lucene.maxExtractedChars characters.
+     *
+     * @return the Dublin Core attributes, or null if the attachment could
+     * not be parsed.
+     */
+    public JSONObject extract(final InputStream in, final String contentType, final Writer text) {
+        if (!accepts(contentType)) {
+            log.debug("Not parsing an attachment of type " + contentType);
+            return null;
+        }
         final Metadata md = new Metadata();
         md.set(HttpHeaders.CONTENT_TYPE, contentType);
 
+        final Parser parser = getParser();
+        final WriteOutContentHandler handler = new WriteOutContentHandler(text, maxChars);
         try {
-            // Add body text.
-            doc.add(text(fieldName, tika.parseToString(in, md), false));
+            parser.parse(in, new BodyContentHandler(handler), md, new ParseContext());
+        } catch (final SAXException e) {
+            if (!handler.isWriteLimitReached(e)) {
+                log.warn("Failed to parse an attachment.", e);
+                return null;
+            }
+            log.info("Truncated the text of an attachment at " + maxChars + " characters.");
         } catch (final IOException e) {
             log.warn("Failed to index an attachment.", e);
-            return;
+            return null;
         } catch (final TikaException e) {
             log.warn("Failed to parse an attachment.", e);
-            return;
+            return null;
+        }
+
+        final JSONObject result = new JSONObject();
+        try {
+            addDublinCoreAttributes(md, result);
+        } catch (final JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the Dublin Core attributes returned by extract as _dc.* fields.
+     */
+    public void addMetadata(final JSONObject metadata, final Document doc) {
+        final Iterator<?> it = metadata.keys();
+        while (it.hasNext()) {
+            final String name = (String) it.next();
+            doc.add(text(DC + name, metadata.optString(name), false));
+        }
+    }
+
+    private Parser getParser() {
+        final Parser result = parser;
+        return result != null ? result : initParser();
+    }
+
+    private synchronized Parser initParser() {
+        if (parser == null) {
+            final Map<String, String> args = new HashMap<>();
+            final String[] parsers = ini.getStringArray("lucene.extractionParsers");
+            if (parsers.length > 0) {
+                args.put(TikaParserFactory.PARSERS, String.join(",", parsers));
+            }
+            fork = ini.getBoolean("lucene.forkExtraction", false) ? newForkParser(ini, args) : null;
+            parser = fork != null ? fork : new TikaParserFactory(args).build();
         }
+        return parser;
+    }
 
-        // Add DC attributes.
-        addDublinCoreAttributes(md, doc);
+    private static ForkParser newForkParser(final HierarchicalINIConfiguration ini, final Map<String, String> args) {
+        final File classpath = forkClasspath(ini);
+        if (classpath == null) {
+            log.warn("lucene.forkExtraction needs lucene.forkClasspath when not run from a jar, " +
+                    "parsing attachments in this JVM.");
+            return null;
+        }
+        final ForkParser result = new ForkParser(classpath.toPath(),
+                new ParserFactoryFactory(TikaParserFactory.class.getName(), args));
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        result.setJavaCommand(Arrays.asList(java, "-Xmx" + ini.getString("lucene.forkHeap", "512m"),
+                "-Djava.awt.headless=true"));
+        result.setPoolSize(Math.max(1, ini.getInt("lucene.forkPoolSize", ini.getInt("lucene.extractionThreads", 2))));
+        result.setMaxFilesProcessedPerServer(Math.max(1, ini.getInt("lucene.forkMaxDocuments", 100)));
+        final long timeout = ini.getLong("lucene.attachmentTimeout", 60000);
+        if (timeout > 0) {
+            result.setServerParseTimeoutMillis(timeout);
+        }
+        return result;
     }
 
-    private void addAttribute(final String namespace, final String attributeName, final Metadata md, final Document doc) {
-        if (md.get(attributeName) != null) {
-            doc.add(text(namespace + attributeName, md.get(attributeName), false));
+    /**
+     * @return the directory of jars the workers run from: lucene.forkClasspath,
+     * or the directory holding the couchdb-lucene jar.
+     */
+    private static File forkClasspath(final HierarchicalINIConfiguration ini) {
+        final String dir = ini.getString("lucene.forkClasspath", null);
+        if (dir != null) {
+            return new File(dir);
+        }
+        final CodeSource source = Tika.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            return null;
+        }
+        try {
+            final File jar = new File(source.getLocation().toURI());
+            return jar.isFile() ? jar.getParentFile() : null;
+        } catch (final URISyntaxException | SecurityException e) {
+            return null;
         }
     }
 
-    private void addAttribute(final String namespace, final Property property, final Metadata md, final Document doc) {
+    private void addAttribute(final Property property, final Metadata md, final JSONObject metadata)
+            throws JSONException {
         if (md.get(property) != null) {
-            doc.add(text(namespace + property.getName(), md.get(property), false));
+            metadata.put(property.getName(), md.get(property));
         }
     }
 
-    private void addDublinCoreAttributes(final Metadata md, final Document doc) {
-        addAttribute(DC, DublinCore.CONTRIBUTOR, md, doc);
-        addAttribute(DC, DublinCore.COVERAGE, md, doc);
-        addAttribute(DC, DublinCore.CREATOR, md, doc);
-        addAttribute(DC, DublinCore.DATE, md, doc);
-        addAttribute(DC, DublinCore.DESCRIPTION, md, doc);
-        addAttribute(DC, DublinCore.FORMAT, md, doc);
-        addAttribute(DC, DublinCore.IDENTIFIER, md, doc);
-        addAttribute(DC, DublinCore.LANGUAGE, md, doc);
-        addAttribute(DC, DublinCore.MODIFIED, md, doc);
-        addAttribute(DC, DublinCore.PUBLISHER, md, doc);
-        addAttribute(DC, DublinCore.RELATION, md, doc);
-        addAttribute(DC, DublinCore.RIGHTS, md, doc);
-        addAttribute(DC, DublinCore.SOURCE, md, doc);
-        addAttribute(DC, DublinCore.SUBJECT, md, doc);
-        addAttribute(DC, DublinCore.TITLE, md, doc);
-        addAttribute(DC, DublinCore.TYPE, md, doc);
+    private void addDublinCoreAttributes(final Metadata md, final JSONObject metadata)
+            throws JSONException {
+        addAttribute(DublinCore.CONTRIBUTOR, md, metadata);
+        addAttribute(DublinCore.COVERAGE, md, metadata);
+        addAttribute(DublinCore.CREATOR, md, metadata);
+        addAttribute(DublinCore.DATE, md, metadata);
+        addAttribute(DublinCore.DESCRIPTION, md, metadata);
+        addAttribute(DublinCore.FORMAT, md, metadata);
+        addAttribute(DublinCore.IDENTIFIER, md, metadata);
+        addAttribute(DublinCore.LANGUAGE, md, metadata);
+        addAttribute(DublinCore.MODIFIED, md, metadata);
+        addAttribute(DublinCore.PUBLISHER, md, metadata);
+        addAttribute(DublinCore.RELATION, md, metadata);
+        addAttribute(DublinCore.RIGHTS, md, metadata);
+        addAttribute(DublinCore.SOURCE, md, metadata);
+        addAttribute(DublinCore.SUBJECT, md, metadata);
+        addAttribute(DublinCore.TITLE, md, metadata);
+        addAttribute(DublinCore.TYPE, md, metadata);
     }
 }
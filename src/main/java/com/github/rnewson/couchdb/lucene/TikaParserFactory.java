@@ -0,0 +1,86 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.ParserDecorator;
+import org.apache.tika.parser.ParserFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the parser used for attachments, in this JVM or, by name, in a
+ * forked Tika worker. The parser detects the type and also parses
+ * documents embedded in the attachment. If the {@value #PARSERS} argument
+ * lists parser classes only those are loaded, instead of every parser
+ * Tika can find.
+ *
+ * @author rnewson
+ */
+public final class TikaParserFactory extends ParserFactory {
+
+    public static final String PARSERS = "parsers";
+
+    private static final Logger LOG = LoggerFactory.getLogger(TikaParserFactory.class);
+
+    private final String parsers;
+
+    public TikaParserFactory(final Map<String, String> args) {
+        super(args);
+        this.parsers = args.get(PARSERS);
+    }
+
+    @Override
+    public Parser build() {
+        final Parser parser = parsers == null ? new AutoDetectParser() : new AutoDetectParser(load(parsers));
+        return new ParserDecorator(parser) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void parse(final InputStream stream, final ContentHandler handler, final Metadata metadata,
+                              final ParseContext context) throws IOException, SAXException, TikaException {
+                context.set(Parser.class, parser);
+                super.parse(stream, handler, metadata, context);
+            }
+        };
+    }
+
+    private static Parser[] load(final String names) {
+        final List<Parser> result = new ArrayList<>();
+        for (final String name : names.split(",")) {
+            try {
+                result.add(Class.forName(name.trim()).asSubclass(Parser.class).newInstance());
+            } catch (final ReflectiveOperationException | ClassCastException | LinkageError e) {
+                LOG.warn("Ignoring unusable parser " + name, e);
+            }
+        }
+        return result.toArray(new Parser[result.size()]);
+    }
+
+}
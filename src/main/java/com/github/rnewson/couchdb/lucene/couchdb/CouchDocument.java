@@ -25,8 +25,12 @@ public class CouchDocument {
 
     private static final String ID = "_id";
 
+    private static final String REV = "_rev";
+
     private static final String DELETED = "_deleted";
 
+    private static final String ATTACHMENTS = "_attachments";
+
     public static CouchDocument deletedDocument(final String id) throws JSONException {
         final JSONObject json = new JSONObject();
         json.put(ID, id);
@@ -45,6 +49,18 @@ public class CouchDocument {
         return json.getString(ID);
     }
 
+    public String getRev() {
+        return json.optString(REV, null);
+    }
+
+    /**
+     * @return the stub of the named attachment, or null.
+     */
+    public JSONObject getAttachment(final String name) {
+        final JSONObject attachments = json.optJSONObject(ATTACHMENTS);
+        return attachments == null ? null : attachments.optJSONObject(name);
+    }
+
     public boolean isDeleted() {
         return json.optBoolean(DELETED, false);
     }
@@ -105,19 +105,25 @@ public final class Database {
 
     public <T> T handleAttachment(final String doc, final String att,
                                   final ResponseHandler<T> handler) throws IOException {
-        final HttpGet get = new HttpGet(url + "/" + Utils.urlEncode(doc) + "/"
+        return execute(getAttachmentRequest(doc, att), handler);
+    }
+
+    public HttpUriRequest getAttachmentRequest(final String doc, final String att) {
+        return new HttpGet(url + "/" + Utils.urlEncode(doc) + "/"
                 + Utils.urlEncode(att));
-        return httpClient.execute(get, handler);
     }
 
-    public HttpUriRequest getChangesRequest(final UpdateSequence since, final long timeout)
+    public <T> T execute(final HttpUriRequest req, final ResponseHandler<T> handler) throws IOException {
+        return httpClient.execute(req, handler);
+    }
+
+    /**
+     * A request for the next batch of at most limit changes, returning
+     * immediately if there are none.
+     */
+    public HttpUriRequest getChangesRequest(final UpdateSequence since, final int limit)
             throws IOException {
-        final String uri;
-        if (timeout > -1) {
-            uri = url + "_changes?feed=continuous&timeout="+timeout+"&include_docs=true";
-        } else {
-            uri = url + "_changes?feed=continuous&heartbeat=15000&include_docs=true";
-        }
+        final String uri = url + "_changes?feed=normal&limit=" + limit + "&include_docs=true";
         return new HttpGet(since.appendSince(uri));
     }
 
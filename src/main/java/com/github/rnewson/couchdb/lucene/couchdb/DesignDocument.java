@@ -18,6 +18,8 @@ package com.github.rnewson.couchdb.lucene.couchdb;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -26,6 +28,8 @@ import java.util.Map;
 
 public class DesignDocument extends CouchDocument {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DesignDocument.class);
+
     private final JSONObject fulltext;
 
     public DesignDocument(final JSONObject json) throws JSONException {
@@ -48,6 +52,10 @@ public class DesignDocument extends CouchDocument {
         return json == null ? null : new View(getId() + "/" + name, json);
     }
 
+    /**
+     * @return the valid views; invalid ones are logged and left out, so they
+     * do not stop the others from being indexed.
+     */
     public Map<String, View> getAllViews() throws JSONException {
         if (fulltext == null)
             return Collections.emptyMap();
@@ -56,7 +64,13 @@ public class DesignDocument extends CouchDocument {
         while (it.hasNext()) {
             final Object key = it.next();
             final String name = (String) key;
-            final View view = getView(name);
+            final View view;
+            try {
+                view = getView(name);
+            } catch (final IllegalArgumentException e) {
+                LOG.warn("Skipping invalid view " + getId() + "/" + name + ": " + e.getMessage());
+                continue;
+            }
             if (view != null) {
                 result.put(name, view);
             }
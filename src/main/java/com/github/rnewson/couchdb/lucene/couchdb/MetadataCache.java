@@ -0,0 +1,183 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.couchdb;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Caches database metadata that rarely changes: the couchdb-lucene uuid, and
+ * the database info together with the design documents. Entries expire
+ * after lucene.metadataTTL seconds, expired entries are dropped at most once
+ * per TTL, and the indexer invalidates the info and design documents when
+ * the changes feed moves.
+ *
+ * @author rnewson
+ */
+public final class MetadataCache {
+
+    public static final MetadataCache INSTANCE = new MetadataCache();
+
+    /**
+     * The database info and the design documents, fetched in that order so
+     * that the update sequence is never later than the design documents.
+     */
+    public static final class Snapshot {
+
+        private final DatabaseInfo info;
+
+        private final List<DesignDocument> designDocuments;
+
+        private Snapshot(final DatabaseInfo info, final List<DesignDocument> designDocuments) {
+            this.info = info;
+            this.designDocuments = Collections.unmodifiableList(designDocuments);
+        }
+
+        public DatabaseInfo getInfo() {
+            return info;
+        }
+
+        public List<DesignDocument> getAllDesignDocuments() {
+            return designDocuments;
+        }
+
+    }
+
+    private static final class Cached<T> {
+
+        private final T value;
+
+        private final long expires;
+
+        private Cached(final T value, final long ttlNanos) {
+            this.value = value;
+            this.expires = System.nanoTime() + ttlNanos;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expires >= 0;
+        }
+
+    }
+
+    private final ConcurrentMap<Database, Cached<UUID>> uuids = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Database, Cached<Snapshot>> snapshots = new ConcurrentHashMap<>();
+
+    private volatile long ttlNanos = SECONDS.toNanos(60);
+
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+    public void setIni(final HierarchicalINIConfiguration ini) {
+        setTtl(Math.max(0, ini.getLong("lucene.metadataTTL", 60)), SECONDS);
+    }
+
+    void setTtl(final long ttl, final TimeUnit unit) {
+        ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * @return the uuid, or null if the database has none yet.
+     */
+    public UUID getUuid(final Database database) throws IOException, JSONException {
+        final Cached<UUID> cached = uuids.get(database);
+        if (cached != null && !cached.isExpired()) {
+            return cached.value;
+        }
+        final UUID result = database.getUuid();
+        return result == null ? null : put(uuids, database, result);
+    }
+
+    public UUID getOrCreateUuid(final Database database) throws IOException, JSONException {
+        final UUID result = getUuid(database);
+        if (result != null) {
+            return result;
+        }
+        return put(uuids, database, database.getOrCreateUuid());
+    }
+
+    public Snapshot getSnapshot(final Database database) throws IOException, JSONException {
+        final Cached<Snapshot> cached = snapshots.get(database);
+        if (cached != null && !cached.isExpired()) {
+            return cached.value;
+        }
+        final DatabaseInfo info = database.getInfo();
+        final List<DesignDocument> designDocuments = database.getAllDesignDocuments();
+        return put(snapshots, database, new Snapshot(info, designDocuments));
+    }
+
+    public DatabaseInfo getInfo(final Database database) throws IOException, JSONException {
+        return getSnapshot(database).getInfo();
+    }
+
+    /**
+     * Forgets the database info and design documents, e.g, because the
+     * database has changed.
+     */
+    public void invalidate(final Database database) {
+        snapshots.remove(database);
+    }
+
+    /**
+     * The number of cached entries, expired or not.
+     */
+    int size() {
+        return uuids.size() + snapshots.size();
+    }
+
+    private <T> T put(final ConcurrentMap<Database, Cached<T>> map, final Database database, final T value) {
+        sweep();
+        map.put(database, new Cached<>(value, ttlNanos));
+        return value;
+    }
+
+    /**
+     * Drops expired entries, so databases that are no longer used are
+     * forgotten.
+     */
+    private void sweep() {
+        final long now = System.nanoTime();
+        final long next = nextSweep.get();
+        if (now - next < 0 || !nextSweep.compareAndSet(next, now + ttlNanos)) {
+            return;
+        }
+        sweep(uuids);
+        sweep(snapshots);
+    }
+
+    private static <T> void sweep(final ConcurrentMap<Database, Cached<T>> map) {
+        final Iterator<Cached<T>> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired()) {
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -13,20 +13,21 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.github.rnewson.couchdb.lucene.couchdb;
 
-import com.ericsson.otp.erlang.*;
 import org.apache.commons.codec.binary.Base64;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * This class represents a point-in-time for a couchdb or bigcouch database.
@@ -35,36 +36,26 @@ import java.util.regex.Pattern;
  */
 public abstract class UpdateSequence {
 
+    /**
+     * A clustered sequence: the update sequence of every shard copy, packed
+     * as a base64 encoded Erlang term. The term is only decoded when the
+     * sequence is first compared, and the last comparison is remembered,
+     * as the indexer compares each change against the same sequences over
+     * and over.
+     */
     private static class BigCouchUpdateSequence extends UpdateSequence {
 
         private final String since;
-        private final Map<String, Long> vector = new HashMap<>();
+
+        private final String packedSeqs;
+
+        private volatile Vector vector;
+
+        private volatile Comparison last;
 
         private BigCouchUpdateSequence(final String encodedVector, final String packedSeqs) {
             this.since = encodedVector;
-
-            final byte[] bytes = new Base64(true).decode(packedSeqs);
-            final OtpInputStream stream = new OtpInputStream(bytes);
-            try {
-                final OtpErlangList list = (OtpErlangList) stream.read_any();
-                for (int i = 0, arity = list.arity(); i < arity; i++) {
-                    final OtpErlangTuple tuple = (OtpErlangTuple) list.elementAt(i);
-                    final OtpErlangObject node = tuple.elementAt(0);
-                    final OtpErlangObject range = tuple.elementAt(1);
-                    final OtpErlangObject seq_obj = tuple.elementAt(2);
-                    final OtpErlangLong node_seq;
-                    if (seq_obj instanceof OtpErlangLong) {
-                        node_seq = (OtpErlangLong) seq_obj;
-                    } else if (seq_obj instanceof OtpErlangTuple) {
-                        node_seq = (OtpErlangLong) ((OtpErlangTuple)seq_obj).elementAt(0);
-                    } else {
-                        throw new IllegalArgumentException("could not decode seq");
-                    }
-                    vector.put(node + "-" + range, node_seq.longValue());
-                }
-            } catch (final OtpErlangDecodeException e) {
-                throw new IllegalArgumentException(encodedVector + " not valid.");
-            }
+            this.packedSeqs = packedSeqs;
         }
 
         @Override
@@ -81,21 +72,7 @@ public abstract class UpdateSequence {
             if (other == START) {
                 return false;
             }
-
-            if (other instanceof BigCouchUpdateSequence) {
-                final BigCouchUpdateSequence otherBigCouch = (BigCouchUpdateSequence) other;
-                final Iterator<Entry<String, Long>> it = this.vector.entrySet().iterator();
-                while (it.hasNext()) {
-                    final Entry<String, Long> entry = it.next();
-                    final Long otherValue = otherBigCouch.vector.get(entry.getKey());
-                    if (otherValue != null && entry.getValue() < otherValue) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-
-            throw new IllegalArgumentException(other + " is not compatible.");
+            return compare(other).earlier;
         }
 
         @Override
@@ -103,21 +80,29 @@ public abstract class UpdateSequence {
             if (other == START) {
                 return true;
             }
+            return compare(other).later;
+        }
 
-            if (other instanceof BigCouchUpdateSequence) {
-                final BigCouchUpdateSequence otherBigCouch = (BigCouchUpdateSequence) other;
-                final Iterator<Entry<String, Long>> it = this.vector.entrySet().iterator();
-                while (it.hasNext()) {
-                    final Entry<String, Long> entry = it.next();
-                    final Long otherValue = otherBigCouch.vector.get(entry.getKey());
-                    if (otherValue != null && entry.getValue() > otherValue) {
-                        return true;
-                    }
-                }
-                return false;
+        private Comparison compare(final UpdateSequence other) {
+            final Comparison last = this.last;
+            if (last != null && last.other == other) {
+                return last;
+            }
+            if (!(other instanceof BigCouchUpdateSequence)) {
+                throw new IllegalArgumentException(other + " is not compatible.");
             }
+            final Comparison result = new Comparison(other, getVector(), ((BigCouchUpdateSequence) other).getVector());
+            this.last = result;
+            return result;
+        }
 
-            throw new IllegalArgumentException(other + " is not compatible.");
+        private Vector getVector() {
+            Vector result = vector;
+            if (result == null) {
+                result = Vector.decode(since, packedSeqs);
+                vector = result;
+            }
+            return result;
         }
 
         @Override
@@ -126,6 +111,324 @@ public abstract class UpdateSequence {
         }
     }
 
+    /**
+     * The sequence of each shard copy. Copies are identified by
+     * "node-begin-end" keys. Keys and key arrays are interned to save memory
+     * and to make the common comparisons cheap, but the table is bounded, so
+     * identity is only ever a fast path and keys are matched by value.
+     */
+    private static final class Vector {
+
+        private static final int MAX_INTERNED = 10000;
+
+        private static final ConcurrentMap<String, String> KEYS = new ConcurrentHashMap<>();
+
+        private static final ConcurrentMap<List<String>, String[]> LAYOUTS = new ConcurrentHashMap<>();
+
+        private final String[] keys;
+
+        private final long[] seqs;
+
+        private Vector(final String[] keys, final long[] seqs) {
+            this.keys = keys;
+            this.seqs = seqs;
+        }
+
+        private long get(final String key, final int hint) {
+            if (hint < keys.length && key.equals(keys[hint])) {
+                return seqs[hint];
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i])) {
+                    return seqs[i];
+                }
+            }
+            return -1;
+        }
+
+        private static Vector decode(final String since, final String packedSeqs) {
+            try {
+                TermReader reader = new TermReader(new Base64(true).decode(packedSeqs));
+                if (reader.u8() != 131) {
+                    throw new IllegalArgumentException(since + " not valid.");
+                }
+                if (reader.peek() == 80) {
+                    reader = reader.inflate();
+                }
+                final int count = reader.listHeader();
+                final String[] keys = new String[count];
+                final long[] seqs = new long[count];
+                for (int i = 0; i < count; i++) {
+                    final int arity = reader.tupleHeader();
+                    if (arity < 3) {
+                        throw new IllegalArgumentException(since + " not valid.");
+                    }
+                    final String node = reader.readAtom();
+                    final long[] range = reader.readRange();
+                    final String key = node + "-" + range[0] + "-" + range[1];
+                    keys[i] = intern(KEYS, key, key);
+                    seqs[i] = reader.readSeq();
+                    for (int j = 3; j < arity; j++) {
+                        reader.skip();
+                    }
+                }
+                return new Vector(intern(LAYOUTS, Arrays.asList(keys), keys), seqs);
+            } catch (final IndexOutOfBoundsException | NegativeArraySizeException | DataFormatException e) {
+                throw new IllegalArgumentException(since + " not valid.");
+            }
+        }
+
+        private static <K, V> V intern(final ConcurrentMap<K, V> map, final K key, final V value) {
+            final V result = map.get(key);
+            if (result != null) {
+                return result;
+            }
+            if (map.size() >= MAX_INTERNED) {
+                map.clear();
+            }
+            final V previous = map.putIfAbsent(key, value);
+            return previous != null ? previous : value;
+        }
+
+    }
+
+    /**
+     * Whether any shard copy is behind or ahead of another sequence; copies
+     * only one side knows about are ignored.
+     */
+    private static final class Comparison {
+
+        private final UpdateSequence other;
+
+        private final boolean earlier;
+
+        private final boolean later;
+
+        private Comparison(final UpdateSequence other, final Vector a, final Vector b) {
+            this.other = other;
+            boolean earlier = false;
+            boolean later = false;
+            if (a.keys == b.keys || Arrays.equals(a.keys, b.keys)) {
+                for (int i = 0; i < a.seqs.length; i++) {
+                    earlier |= a.seqs[i] < b.seqs[i];
+                    later |= a.seqs[i] > b.seqs[i];
+                }
+            } else {
+                for (int i = 0; i < a.seqs.length; i++) {
+                    final long seq = b.get(a.keys[i], i);
+                    if (seq != -1) {
+                        earlier |= a.seqs[i] < seq;
+                        later |= a.seqs[i] > seq;
+                    }
+                }
+            }
+            this.earlier = earlier;
+            this.later = later;
+        }
+
+    }
+
+    /**
+     * Just enough of the Erlang external term format to read a packed
+     * clustered sequence: a list of {Node, [Begin, End], Seq} tuples, where
+     * Seq may be a tuple whose first element is the sequence.
+     */
+    private static final class TermReader {
+
+        private final byte[] bytes;
+
+        private int pos;
+
+        private TermReader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private TermReader inflate() throws DataFormatException {
+            u8();
+            final byte[] result = new byte[(int) u32()];
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(bytes, pos, bytes.length - pos);
+                if (inflater.inflate(result) != result.length) {
+                    throw new DataFormatException("truncated");
+                }
+            } finally {
+                inflater.end();
+            }
+            return new TermReader(result);
+        }
+
+        private int peek() {
+            return bytes[pos] & 0xff;
+        }
+
+        private int u8() {
+            return bytes[pos++] & 0xff;
+        }
+
+        private int u16() {
+            return (u8() << 8) | u8();
+        }
+
+        private long u32() {
+            return ((long) u16() << 16) | u16();
+        }
+
+        private int listHeader() {
+            final int tag = u8();
+            if (tag == 106) {
+                return 0;
+            }
+            if (tag != 108) {
+                throw new IllegalArgumentException("expected a list");
+            }
+            return (int) u32();
+        }
+
+        private int tupleHeader() {
+            final int tag = u8();
+            if (tag == 104) {
+                return u8();
+            }
+            if (tag == 105) {
+                return (int) u32();
+            }
+            throw new IllegalArgumentException("expected a tuple");
+        }
+
+        private String readAtom() {
+            final int tag = u8();
+            final int length;
+            switch (tag) {
+                case 100:
+                case 118:
+                    length = u16();
+                    break;
+                case 115:
+                case 119:
+                    length = u8();
+                    break;
+                default:
+                    throw new IllegalArgumentException("expected an atom");
+            }
+            final String result = new String(bytes, pos, length,
+                    tag == 100 || tag == 115 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            pos += length;
+            return result;
+        }
+
+        private long[] readRange() {
+            if (peek() == 107) {
+                // A list of small integers is encoded as a string.
+                u8();
+                if (u16() != 2) {
+                    throw new IllegalArgumentException("expected a range");
+                }
+                return new long[]{u8(), u8()};
+            }
+            if (listHeader() != 2) {
+                throw new IllegalArgumentException("expected a range");
+            }
+            final long[] result = new long[]{readLong(), readLong()};
+            if (u8() != 106) {
+                throw new IllegalArgumentException("expected a range");
+            }
+            return result;
+        }
+
+        private long readSeq() {
+            final int tag = peek();
+            if (tag != 104 && tag != 105) {
+                return readLong();
+            }
+            final int arity = tupleHeader();
+            final long result = readLong();
+            for (int i = 1; i < arity; i++) {
+                skip();
+            }
+            return result;
+        }
+
+        private long readLong() {
+            final int tag = u8();
+            switch (tag) {
+                case 97:
+                    return u8();
+                case 98:
+                    return (int) u32();
+                case 110:
+                case 111: {
+                    final int n = tag == 110 ? u8() : (int) u32();
+                    final int sign = u8();
+                    if (n > 8) {
+                        throw new IllegalArgumentException("integer too large");
+                    }
+                    long result = 0;
+                    for (int i = 0; i < n; i++) {
+                        result |= (long) u8() << (8 * i);
+                    }
+                    return sign == 0 ? result : -result;
+                }
+                default:
+                    throw new IllegalArgumentException("expected an integer");
+            }
+        }
+
+        private void skip() {
+            final int tag = u8();
+            switch (tag) {
+                case 97:
+                    pos += 1;
+                    break;
+                case 98:
+                    pos += 4;
+                    break;
+                case 70:
+                    pos += 8;
+                    break;
+                case 100:
+                case 118:
+                case 107:
+                    pos += u16();
+                    break;
+                case 115:
+                case 119:
+                    pos += u8();
+                    break;
+                case 109:
+                    pos += (int) u32();
+                    break;
+                case 110:
+                    pos += u8() + 1;
+                    break;
+                case 111:
+                    pos += (int) u32() + 1;
+                    break;
+                case 106:
+                    break;
+                case 104:
+                case 105: {
+                    final int arity = tag == 104 ? u8() : (int) u32();
+                    for (int i = 0; i < arity; i++) {
+                        skip();
+                    }
+                    break;
+                }
+                case 108: {
+                    // Elements and the tail.
+                    final long length = u32();
+                    for (long i = 0; i <= length; i++) {
+                        skip();
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unsupported term " + tag);
+            }
+        }
+
+    }
+
     private static class CouchDbUpdateSequence extends UpdateSequence {
         private final long seq;
 
@@ -197,29 +500,53 @@ public abstract class UpdateSequence {
 
     public static final UpdateSequence START = new StartOfUpdateSequence();
 
-    private static Pattern BC3 = Pattern.compile("[0-9]+-([0-9a-zA-Z_-]+)");
-    private static Pattern BC4 = Pattern.compile("\\[[0-9]+\\s*,\\s*\"([0-9a-zA-Z_-]+)\"\\]");
+    private static final Pattern BC4 = Pattern.compile("\\[[0-9]+\\s*,\\s*\"([0-9a-zA-Z_-]+)\"\\]");
 
+    /**
+     * Recognizes the sequence without decoding it; CouchDB 2 and later and
+     * BigCouch 3 send "N-packed", BigCouch 4 sends [N, "packed"].
+     */
     public static UpdateSequence parseUpdateSequence(final String str) {
-        if (str.matches("[0-9]+")) {
+        if (isDigits(str, 0, str.length())) {
             return new CouchDbUpdateSequence(str);
         }
-        String packedSeqs;
-        if ((packedSeqs = extractPackedSeqs(BC3, str)) != null) {
-            return new BigCouchUpdateSequence(str, packedSeqs);
+        final int dash = str.indexOf('-');
+        if (dash > 0 && isDigits(str, 0, dash) && isPacked(str, dash + 1, str.length())) {
+            return new BigCouchUpdateSequence(str, str.substring(dash + 1));
         }
-        if ((packedSeqs = extractPackedSeqs(BC4, str)) != null) {
-            return new BigCouchUpdateSequence(str, packedSeqs);
+        if (str.startsWith("[")) {
+            final Matcher m = BC4.matcher(str);
+            if (m.matches()) {
+                return new BigCouchUpdateSequence(str, m.group(1));
+            }
         }
         throw new IllegalArgumentException(str + " not recognized.");
     }
 
-    private static String extractPackedSeqs(final Pattern p, final String str) {
-        final Matcher m = p.matcher(str);
-        if (m.matches()) {
-            return m.group(1);
+    private static boolean isDigits(final String str, final int from, final int to) {
+        if (from == to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            final char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPacked(final String str, final int from, final int to) {
+        if (from == to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            final char c = str.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == '-')) {
+                return false;
+            }
         }
-        return null;
+        return true;
     }
 
     public abstract String appendSince(final String url);
@@ -16,15 +16,18 @@
 
 package com.github.rnewson.couchdb.lucene.couchdb;
 
+import com.github.rnewson.couchdb.lucene.IndexFunctionEngines;
+import com.github.rnewson.couchdb.lucene.mapping.MappingEngine;
 import com.github.rnewson.couchdb.lucene.util.Analyzers;
+import com.github.rnewson.couchdb.lucene.util.CodecProfile;
 import com.github.rnewson.couchdb.lucene.util.Constants;
+import com.github.rnewson.couchdb.lucene.util.MergeProfile;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Function;
-import org.mozilla.javascript.ScriptableObject;
 
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
@@ -38,11 +41,13 @@ public final class View {
     private final String name;
 
     public View(final String name, final JSONObject json) {
-        if (!json.has(Constants.INDEX)) {
+        if (!json.has(Constants.INDEX) && !json.has(Constants.MAPPING)) {
             throw new IllegalArgumentException(json + " is not an index");
         }
         this.name = name;
         this.json = json;
+        // Unknown codec settings fail here rather than when the index is opened.
+        getCodecProfile().toCodec();
     }
 
     public Analyzer getAnalyzer() throws JSONException {
@@ -54,13 +59,44 @@ public final class View {
                 .getJSONObject(Constants.DEFAULTS)) : ViewSettings.getDefaultSettings();
     }
 
-    public String getFunction() throws JSONException {
-        return trim(json.getString(Constants.INDEX));
+    public CodecProfile getCodecProfile() {
+        return CodecProfile.fromSpec(json.optJSONObject(Constants.CODEC));
+    }
+
+    public MergeProfile getMergeProfile(final HierarchicalINIConfiguration ini) {
+        return MergeProfile.fromSpec(json.optJSONObject(Constants.MERGE_POLICY), ini);
     }
 
-    public Function compileFunction(final Context context,
-                                    ScriptableObject scope) throws JSONException {
-        return context.compileFunction(scope, getFunction(), null, 0, null);
+    /**
+     * @return the name of the IndexFunctionEngine for this view.
+     */
+    public String getEngine() {
+        if (json.has(Constants.ENGINE)) {
+            return json.optString(Constants.ENGINE);
+        }
+        return json.has(Constants.INDEX) ? IndexFunctionEngines.DEFAULT_ENGINE : MappingEngine.NAME;
+    }
+
+    /**
+     * @return the declarative field mapping, or null.
+     */
+    public JSONArray getMapping() {
+        return json.optJSONArray(Constants.MAPPING);
+    }
+
+    public String getIndexSort() {
+        return json.optString(Constants.INDEX_SORT, null);
+    }
+
+    /**
+     * @return the number of partitions documents are spread over, at least 1.
+     */
+    public int getShards() {
+        return Math.max(1, json.optInt(Constants.SHARDS, 1));
+    }
+
+    public String getFunction() throws JSONException {
+        return trim(json.getString(Constants.INDEX));
     }
 
     public String getDigest() {
@@ -69,6 +105,18 @@ public final class View {
             md.update(toBytes(json.optString("analyzer")));
             md.update(toBytes(json.optString("defaults")));
             md.update(toBytes(json.optString("index")));
+            if (json.has(Constants.INDEX_SORT)) {
+                md.update(toBytes(json.optString(Constants.INDEX_SORT)));
+            }
+            if (getShards() > 1) {
+                md.update(toBytes(Integer.toString(getShards())));
+            }
+            if (json.has(Constants.MAPPING)) {
+                md.update(toBytes(json.optString(Constants.MAPPING)));
+            }
+            if (json.has(Constants.ENGINE)) {
+                md.update(toBytes(json.optString(Constants.ENGINE)));
+            }
             return new BigInteger(1, md.digest()).toString(Character.MAX_RADIX);
         } catch (final NoSuchAlgorithmException e) {
             throw new Error("MD5 support missing.");
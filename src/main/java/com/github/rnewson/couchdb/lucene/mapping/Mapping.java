@@ -0,0 +1,146 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene.mapping;
+
+import com.github.rnewson.couchdb.lucene.AttachmentExtractor;
+import com.github.rnewson.couchdb.lucene.IndexFunction;
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A compiled "mapping": a list of entries such as
+ * <code>{"path":"author.name", "field":"author", "type":"string"}</code>.
+ * Each entry takes the field, store, type and boost settings of the
+ * view's defaults; the field name defaults to the path. Arrays met along
+ * the path, and at its end, add one field per element unless the entry
+ * sets "expand":false, in which case they are skipped. Lucene allows one
+ * doc value per field and document, so only the first value of a field is
+ * sortable. Documents without any mapped value are not indexed.
+ *
+ * @author rnewson
+ */
+final class Mapping implements IndexFunction {
+
+    private static final Collection<Document> NO_DOCUMENTS = Collections.emptyList();
+
+    private static final class Extractor {
+
+        private final String[] path;
+
+        private final String field;
+
+        private final FieldType type;
+
+        private final ViewSettings settings;
+
+        private final boolean expand;
+
+        private Extractor(final JSONObject json, final ViewSettings defaults) throws JSONException {
+            final String path = json.getString(Constants.PATH);
+            this.path = path.split("\\.");
+            this.settings = new ViewSettings(json, defaults);
+            this.field = json.optString(Constants.FIELD, path);
+            this.type = settings.getFieldType();
+            this.expand = json.optBoolean(Constants.EXPAND, true);
+        }
+
+        private int extract(final Object value, final int depth, final Document to) throws ParseException {
+            if (value == null || value == JSONObject.NULL) {
+                return 0;
+            }
+            if (value instanceof JSONArray) {
+                if (!expand) {
+                    return 0;
+                }
+                final JSONArray array = (JSONArray) value;
+                int result = 0;
+                for (int i = 0; i < array.length(); i++) {
+                    result += extract(array.opt(i), depth, to);
+                }
+                return result;
+            }
+            if (depth == path.length) {
+                if (value instanceof JSONObject) {
+                    return 0;
+                }
+                type.addFields(field, value, settings, to);
+                return 1;
+            }
+            if (value instanceof JSONObject) {
+                return extract(((JSONObject) value).opt(path[depth]), depth + 1, to);
+            }
+            return 0;
+        }
+
+    }
+
+    private final Extractor[] extractors;
+
+    Mapping(final JSONArray mapping, final ViewSettings defaults) throws JSONException {
+        extractors = new Extractor[mapping.length()];
+        for (int i = 0; i < extractors.length; i++) {
+            extractors[i] = new Extractor(mapping.getJSONObject(i), defaults);
+        }
+    }
+
+    public Collection<Document> convert(final CouchDocument doc, final ViewSettings defaults,
+                                        final Database database,
+                                        final Collection<CompletableFuture<AttachmentExtractor.Fields>> extractions)
+            throws ParseException, JSONException {
+        final Document fields = new Document();
+        int count = 0;
+        for (final Extractor extractor : extractors) {
+            count += extractor.extract(doc.asJson(), 0, fields);
+        }
+        if (count == 0) {
+            return NO_DOCUMENTS;
+        }
+
+        final Document result = new Document();
+        final Set<String> docValues = new HashSet<>();
+        for (final IndexableField field : fields) {
+            if (field.fieldType().docValuesType() != DocValuesType.NONE && !docValues.add(field.name())) {
+                continue;
+            }
+            result.add(field);
+        }
+
+        final String id = doc.getId();
+        result.add(Utils.token("_id", id, true));
+        result.add(new BinaryDocValuesField("_id", new BytesRef(id)));
+        return Collections.singleton(result);
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene.mapping;
+
+import com.github.rnewson.couchdb.lucene.IndexFunction;
+import com.github.rnewson.couchdb.lucene.IndexFunctionEngine;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import org.json.JSONException;
+
+/**
+ * Indexes the fields listed in a view's "mapping" without running any
+ * Javascript.
+ *
+ * @author rnewson
+ */
+public final class MappingEngine implements IndexFunctionEngine {
+
+    public static final String NAME = "mapping";
+
+    public String getName() {
+        return NAME;
+    }
+
+    public IndexFunction compile(final View view) throws JSONException {
+        if (view.getMapping() == null) {
+            throw new IllegalArgumentException(view + " has no mapping.");
+        }
+        return new Mapping(view.getMapping(), view.getDefaultSettings());
+    }
+
+}
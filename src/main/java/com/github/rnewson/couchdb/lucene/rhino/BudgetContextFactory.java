@@ -0,0 +1,104 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene.rhino;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * Makes Contexts whose scripts count their instructions, so a call to an
+ * index function can be stopped once it runs longer than
+ * lucene.indexFunctionTimeout milliseconds or executes more than
+ * lucene.indexFunctionMaxInstructions instructions (0 for no limit).
+ *
+ * @author rnewson
+ */
+public final class BudgetContextFactory extends ContextFactory {
+
+    /**
+     * Thrown from inside the script. It is an Error so that Javascript
+     * catch and finally blocks cannot intercept it.
+     */
+    public static final class BudgetExceededError extends Error {
+
+        private static final long serialVersionUID = 1L;
+
+        private BudgetExceededError(final String message) {
+            super(message);
+        }
+
+    }
+
+    private static final class Budget {
+
+        private final long deadline;
+
+        private long instructions;
+
+        private Budget(final long deadline) {
+            this.deadline = deadline;
+        }
+
+    }
+
+    public static final BudgetContextFactory INSTANCE = new BudgetContextFactory();
+
+    private static final int THRESHOLD = 10000;
+
+    private static volatile long timeoutMillis = 10000;
+
+    private static volatile long maxInstructions = 0;
+
+    public static void setIni(final HierarchicalINIConfiguration ini) {
+        timeoutMillis = ini.getLong("lucene.indexFunctionTimeout", 10000);
+        maxInstructions = ini.getLong("lucene.indexFunctionMaxInstructions", 0);
+    }
+
+    /**
+     * Starts the budget of one call in the context.
+     */
+    public static void start(final Context context) {
+        context.putThreadLocal(Budget.class,
+                new Budget(timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000 : 0));
+    }
+
+    public Context newContext() {
+        final Context result = makeContext();
+        // Scripts compiled while this is set count their instructions.
+        result.setInstructionObserverThreshold(THRESHOLD);
+        return result;
+    }
+
+    @Override
+    protected void observeInstructionCount(final Context cx, final int instructionCount) {
+        final Budget budget = (Budget) cx.getThreadLocal(Budget.class);
+        if (budget == null) {
+            return;
+        }
+        budget.instructions += instructionCount;
+        if (maxInstructions > 0 && budget.instructions > maxInstructions) {
+            throw new BudgetExceededError("exceeded " + maxInstructions + " instructions");
+        }
+        if (budget.deadline != 0 && System.nanoTime() - budget.deadline > 0) {
+            throw new BudgetExceededError("exceeded " + timeoutMillis + " ms");
+        }
+    }
+
+    private BudgetContextFactory() {
+    }
+
+}
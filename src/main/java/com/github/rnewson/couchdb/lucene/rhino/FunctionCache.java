@@ -0,0 +1,116 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.rhino;
+
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONException;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares compiled index functions and the standard objects between all
+ * DocumentConverters. Scripts are compiled once per view digest; each
+ * converter gets its own top-level scope that inherits from a sealed scope
+ * holding the standard objects, Document and log.
+ *
+ * @author rnewson
+ */
+public final class FunctionCache {
+
+    private static final int MAX_SCRIPTS = 1000;
+
+    private static final Map<String, Script> SCRIPTS = Collections.synchronizedMap(
+            new LinkedHashMap<String, Script>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Script> eldest) {
+                    return size() > MAX_SCRIPTS;
+                }
+            });
+
+    private static ScriptableObject sharedScope;
+
+    /**
+     * Returns a new top-level scope; variables the index function defines
+     * live here, everything else is found in the shared scope.
+     */
+    public static Scriptable newScope(final Context context) {
+        final Scriptable shared = getSharedScope(context);
+        final Scriptable result = context.newObject(shared);
+        result.setPrototype(shared);
+        result.setParentScope(null);
+        return result;
+    }
+
+    /**
+     * Returns the view's index function, bound to the given scope.
+     */
+    public static Function getFunction(final Context context, final Scriptable scope, final View view)
+            throws JSONException {
+        final String digest = view.getDigest();
+        Script script = SCRIPTS.get(digest);
+        if (script == null) {
+            // Evaluate the function as an expression, the newline ends any trailing comment.
+            final String source = StringUtils.stripEnd(view.getFunction(), "; \t\r\n");
+            script = context.compileString("(" + source + "\n)", view.toString(), 1, null);
+            SCRIPTS.put(digest, script);
+        }
+        final Object result = script.exec(context, scope);
+        if (!(result instanceof Function)) {
+            throw Context.reportRuntimeError("index function for " + view + " is not a function.");
+        }
+        return (Function) result;
+    }
+
+    public static int size() {
+        return SCRIPTS.size();
+    }
+
+    private static synchronized Scriptable getSharedScope(final Context context) {
+        if (sharedScope == null) {
+            final ScriptableObject scope = context.initStandardObjects(null, true);
+            try {
+                ScriptableObject.defineClass(scope, RhinoDocument.class, true, false);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+            ScriptableObject.putProperty(scope, "log", new JSLog());
+            scope.sealObject();
+            sharedScope = scope;
+        }
+        return sharedScope;
+    }
+
+    private FunctionCache() {
+        throw new InstantiationError("This class is not supposed to be instantiated.");
+    }
+
+}
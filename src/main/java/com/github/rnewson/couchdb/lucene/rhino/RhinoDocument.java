@@ -16,23 +16,25 @@
 
 package com.github.rnewson.couchdb.lucene.rhino;
 
-import com.github.rnewson.couchdb.lucene.Tika;
+import com.github.rnewson.couchdb.lucene.AttachmentExtractor;
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
 import com.github.rnewson.couchdb.lucene.couchdb.Database;
 import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
 import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
 import com.github.rnewson.couchdb.lucene.util.Utils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONException;
 import org.mozilla.javascript.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Collect data from the user.
@@ -130,12 +132,19 @@ public final class RhinoDocument extends ScriptableObject {
     public RhinoDocument() {
     }
 
-    public Document toDocument(final String id, final ViewSettings defaults, final Database database) throws IOException,
-            ParseException {
+    /**
+     * Returns the document; requested attachments are extracted for it in
+     * the background, adding a future to extractions for each.
+     */
+    public Document toDocument(final CouchDocument doc, final ViewSettings defaults, final Database database,
+                               final Collection<CompletableFuture<AttachmentExtractor.Fields>> extractions)
+            throws ParseException, JSONException {
+        final String id = doc.getId();
         final Document result = new Document();
 
         // Add id.
         result.add(Utils.token("_id", id, true));
+        result.add(new BinaryDocValuesField("_id", new BytesRef(id)));
 
         // Add user-supplied fields.
         for (final RhinoField field : fields) {
@@ -144,7 +153,8 @@ public final class RhinoDocument extends ScriptableObject {
 
         // Parse user-requested attachments.
         for (final RhinoAttachment attachment : attachments) {
-            addAttachment(attachment, id, database, result);
+            extractions.add(AttachmentExtractor.INSTANCE.extract(database, doc,
+                    attachment.attachmentName, attachment.fieldName, result));
         }
 
         return result;
@@ -155,24 +165,6 @@ public final class RhinoDocument extends ScriptableObject {
         return "Document";
     }
 
-    private void addAttachment(final RhinoAttachment attachment, final String id, final Database database, final Document out)
-            throws IOException {
-        final ResponseHandler<Void> handler = new ResponseHandler<Void>() {
-
-            public Void handleResponse(final HttpResponse response) throws ClientProtocolException, IOException {
-                final HttpEntity entity = response.getEntity();
-                try {
-                    Tika.INSTANCE.parse(entity.getContent(), entity.getContentType().getValue(), attachment.fieldName, out);
-                } finally {
-                    entity.consumeContent();
-                }
-                return null;
-            }
-        };
-
-        database.handleAttachment(id, attachment.attachmentName, handler);
-    }
-
     private void addField(final RhinoField field, final ViewSettings defaults, final Document out) throws ParseException {
         final ViewSettings settings = new ViewSettings(field.settings, defaults);
         final FieldType type = settings.getFieldType();
@@ -0,0 +1,62 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene.rhino;
+
+import com.github.rnewson.couchdb.lucene.DocumentConverter;
+import com.github.rnewson.couchdb.lucene.IndexFunction;
+import com.github.rnewson.couchdb.lucene.IndexFunctionEngine;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import org.json.JSONException;
+import org.mozilla.javascript.ClassShutter;
+import org.mozilla.javascript.Context;
+
+import java.io.IOException;
+
+/**
+ * The default engine, running Javascript index functions with Rhino. Each
+ * function gets its own Context, which it enters while converting, and
+ * each call runs on a budget; see {@link BudgetContextFactory}.
+ *
+ * @author rnewson
+ */
+public final class RhinoEngine implements IndexFunctionEngine {
+
+    public static final String NAME = "javascript";
+
+    private static final class RestrictiveClassShutter implements ClassShutter {
+
+        public boolean visibleToScripts(final String fullClassName) {
+            return false;
+        }
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public IndexFunction compile(final View view) throws IOException, JSONException {
+        final Context context = BudgetContextFactory.INSTANCE.newContext();
+        context.setClassShutter(new RestrictiveClassShutter());
+        context.setOptimizationLevel(9);
+        BudgetContextFactory.INSTANCE.enterContext(context);
+        try {
+            return new DocumentConverter(context, view);
+        } finally {
+            Context.exit();
+        }
+    }
+
+}
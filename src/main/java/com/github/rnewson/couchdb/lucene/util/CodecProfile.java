@@ -0,0 +1,102 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.util;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.codecs.lucene62.Lucene62Codec;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The codec settings of a view, as declared by its "codec" object. Postings
+ * and doc values formats are looked up by their Lucene SPI name, so formats
+ * from extra codec jars on the classpath can be used too.
+ *
+ * @author rnewson
+ */
+public final class CodecProfile {
+
+    public static final CodecProfile DEFAULT = new CodecProfile(Mode.BEST_SPEED, "Lucene50", "Lucene54");
+
+    public static CodecProfile fromSpec(final JSONObject json) {
+        if (json == null) {
+            return DEFAULT;
+        }
+        final String stored = json.optString(Constants.STORED, null);
+        return new CodecProfile(
+                stored == null ? DEFAULT.stored : toMode(stored),
+                json.optString(Constants.POSTINGS, DEFAULT.postings),
+                json.optString(Constants.DOCVALUES, DEFAULT.docValues));
+    }
+
+    private static Mode toMode(final String stored) {
+        for (final Mode mode : Mode.values()) {
+            if (mode.name().equalsIgnoreCase(stored)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stored fields mode " + stored + ".");
+    }
+
+    private final Mode stored;
+
+    private final String postings;
+
+    private final String docValues;
+
+    private CodecProfile(final Mode stored, final String postings, final String docValues) {
+        this.stored = stored;
+        this.postings = postings;
+        this.docValues = docValues;
+    }
+
+    public Codec toCodec() {
+        // Fail fast on unknown formats.
+        final PostingsFormat postingsFormat = PostingsFormat.forName(postings);
+        final DocValuesFormat docValuesFormat = DocValuesFormat.forName(docValues);
+        return new Lucene62Codec(stored) {
+
+            @Override
+            public PostingsFormat getPostingsFormatForField(final String field) {
+                return postingsFormat;
+            }
+
+            @Override
+            public DocValuesFormat getDocValuesFormatForField(final String field) {
+                return docValuesFormat;
+            }
+        };
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put(Constants.STORED, stored.toString().toLowerCase());
+        result.put(Constants.POSTINGS, postings);
+        result.put(Constants.DOCVALUES, docValues);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CodecProfile[stored=%s, postings=%s, docvalues=%s]",
+                stored.toString().toLowerCase(), postings, docValues);
+    }
+
+}
@@ -33,9 +33,26 @@ public final class Constants {
     public static final String DEFAULT_ANALYZER = "standard";
     public static final String ANALYZER = "analyzer";
     public static final String INDEX = "index";
+    public static final String INDEX_SORT = "index_sort";
+    public static final String SHARDS = "shards";
+    public static final String ENGINE = "engine";
+    public static final String MAPPING = "mapping";
+    public static final String PATH = "path";
+    public static final String FIELD = "field";
+    public static final String EXPAND = "expand";
     public static final String DEFAULTS = "defaults";
     public static final String CLASS = "class";
     public static final String PARAMS = "params";
     public static final String TYPE = "type";
     public static final String VALUE = "value";
+    public static final String CODEC = "codec";
+    public static final String STORED = "stored";
+    public static final String POSTINGS = "postings";
+    public static final String DOCVALUES = "docvalues";
+    public static final String MERGE_POLICY = "merge_policy";
+    public static final String MAX_MERGE_AT_ONCE = "max_merge_at_once";
+    public static final String SEGMENTS_PER_TIER = "segments_per_tier";
+    public static final String MAX_MERGED_SEGMENT_MB = "max_merged_segment_mb";
+    public static final String FLOOR_SEGMENT_MB = "floor_segment_mb";
+    public static final String RECLAIM_DELETES_WEIGHT = "reclaim_deletes_weight";
 }
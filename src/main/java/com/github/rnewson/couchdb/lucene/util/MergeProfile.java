@@ -0,0 +1,99 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.util;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The TieredMergePolicy settings of a view. Values from the view's
+ * "merge_policy" object win over the [lucene] section of the ini file, which
+ * wins over Lucene's defaults.
+ *
+ * @author rnewson
+ */
+public final class MergeProfile {
+
+    public static MergeProfile fromSpec(final JSONObject json, final HierarchicalINIConfiguration ini) {
+        final TieredMergePolicy defaults = new TieredMergePolicy();
+        final JSONObject spec = json == null ? new JSONObject() : json;
+        return new MergeProfile(
+                spec.optInt(Constants.MAX_MERGE_AT_ONCE,
+                        ini.getInt("lucene.maxMergeAtOnce", defaults.getMaxMergeAtOnce())),
+                spec.optDouble(Constants.SEGMENTS_PER_TIER,
+                        ini.getDouble("lucene.segmentsPerTier", defaults.getSegmentsPerTier())),
+                spec.optDouble(Constants.MAX_MERGED_SEGMENT_MB,
+                        ini.getDouble("lucene.maxMergedSegmentMB", defaults.getMaxMergedSegmentMB())),
+                spec.optDouble(Constants.FLOOR_SEGMENT_MB,
+                        ini.getDouble("lucene.floorSegmentMB", defaults.getFloorSegmentMB())),
+                spec.optDouble(Constants.RECLAIM_DELETES_WEIGHT,
+                        ini.getDouble("lucene.reclaimDeletesWeight", defaults.getReclaimDeletesWeight())));
+    }
+
+    private final int maxMergeAtOnce;
+
+    private final double segmentsPerTier;
+
+    private final double maxMergedSegmentMB;
+
+    private final double floorSegmentMB;
+
+    private final double reclaimDeletesWeight;
+
+    private MergeProfile(final int maxMergeAtOnce, final double segmentsPerTier,
+                         final double maxMergedSegmentMB, final double floorSegmentMB,
+                         final double reclaimDeletesWeight) {
+        this.maxMergeAtOnce = maxMergeAtOnce;
+        this.segmentsPerTier = segmentsPerTier;
+        this.maxMergedSegmentMB = maxMergedSegmentMB;
+        this.floorSegmentMB = floorSegmentMB;
+        this.reclaimDeletesWeight = reclaimDeletesWeight;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a setting is out of range.
+     */
+    public TieredMergePolicy toMergePolicy() {
+        final TieredMergePolicy result = new TieredMergePolicy();
+        result.setMaxMergeAtOnce(maxMergeAtOnce);
+        result.setSegmentsPerTier(segmentsPerTier);
+        result.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        result.setFloorSegmentMB(floorSegmentMB);
+        result.setReclaimDeletesWeight(reclaimDeletesWeight);
+        return result;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put(Constants.MAX_MERGE_AT_ONCE, maxMergeAtOnce);
+        result.put(Constants.SEGMENTS_PER_TIER, segmentsPerTier);
+        result.put(Constants.MAX_MERGED_SEGMENT_MB, maxMergedSegmentMB);
+        result.put(Constants.FLOOR_SEGMENT_MB, floorSegmentMB);
+        result.put(Constants.RECLAIM_DELETES_WEIGHT, reclaimDeletesWeight);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MergeProfile[max_merge_at_once=%d, segments_per_tier=%s, " +
+                        "max_merged_segment_mb=%s, floor_segment_mb=%s, reclaim_deletes_weight=%s]",
+                maxMergeAtOnce, segmentsPerTier, maxMergedSegmentMB, floorSegmentMB, reclaimDeletesWeight);
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AttachmentExtractorTest {
+
+    private static final String TEXT = "the quick brown fox jumped over the lazy dog";
+
+    /**
+     * Serves TEXT as an attachment. The attachment named "slow" is TEXT many
+     * times over; it sends the first half, waits until released, then sends
+     * the rest.
+     */
+    private static final class AttachmentServlet extends HttpServlet {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile String contentType = "text/plain";
+
+        private volatile boolean contentLength = true;
+
+        @Override
+        protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            final boolean slow = req.getRequestURI().endsWith("/slow");
+            final byte[] body = (slow ? StringUtils.repeat(TEXT + " ", 20000) : TEXT).getBytes(StandardCharsets.UTF_8);
+            if (contentType != null) {
+                resp.setContentType(contentType);
+            }
+            if (contentLength) {
+                resp.setContentLength(body.length);
+            }
+            final OutputStream out = resp.getOutputStream();
+            if (slow) {
+                out.write(body, 0, body.length / 2);
+                out.flush();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(body, body.length / 2, body.length - body.length / 2);
+            } else {
+                out.write(body);
+            }
+        }
+
+    }
+
+    private final AttachmentServlet servlet = new AttachmentServlet();
+
+    private Server server;
+
+    private CloseableHttpClient client;
+
+    private Database database;
+
+    private File dir;
+
+    private HierarchicalINIConfiguration ini;
+
+    @Before
+    public void setup() throws Exception {
+        server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+
+        client = HttpClients.createDefault();
+        database = new Database(client, "http://localhost:" + connector.getLocalPort() + "/db");
+        dir = Files.createTempDirectory("extractor").toFile();
+        ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.dir", dir.getPath());
+        ini.setProperty("lucene.extractionCache", false);
+        configure();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        servlet.release.countDown();
+        final HierarchicalINIConfiguration defaults = new HierarchicalINIConfiguration();
+        defaults.setProperty("lucene.extractionCache", false);
+        AttachmentExtractor.INSTANCE.setIni(defaults);
+        ExtractionCache.INSTANCE.setIni(defaults);
+        Tika.INSTANCE.setIni(defaults);
+        client.close();
+        server.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void extract() throws Exception {
+        final Document doc = new Document();
+        complete(extract("att", "text/plain", doc));
+        assertThat(read(doc), is(TEXT));
+    }
+
+    @Test
+    public void missingContentTypeUsesStub() throws Exception {
+        servlet.contentType = null;
+        final Document doc = new Document();
+        complete(extract("att", "text/plain", doc));
+        assertThat(read(doc), is(TEXT));
+    }
+
+    @Test
+    public void stubTooLarge() throws Exception {
+        ini.setProperty("lucene.maxAttachmentBytes", 10);
+        configure();
+        final long before = count("too_large");
+        final Document doc = new Document();
+        final CompletableFuture<AttachmentExtractor.Fields> result = extract("att", "text/plain", doc);
+        assertThat(result.isDone(), is(true));
+        assertThat(doc.getField("body"), nullValue());
+        assertThat(count("too_large"), is(before + 1));
+    }
+
+    @Test
+    public void bodyTooLarge() throws Exception {
+        ini.setProperty("lucene.maxAttachmentBytes", 10);
+        configure();
+        servlet.contentLength = false;
+        final long before = count("too_large");
+        final Document doc = new Document();
+        // The stub does not give the length, so the body is counted as it is read.
+        complete(extract("att", null, "text/plain", doc));
+        assertThat(doc.getField("body"), nullValue());
+        assertThat(count("too_large"), is(before + 1));
+        assertThat(spooled(), is(0));
+    }
+
+    @Test
+    public void rejectedTypeIsNotRead() throws Exception {
+        ini.setProperty("lucene.extractionTypes", "text/plain");
+        ini.setProperty("lucene.attachmentTimeout", 0);
+        configure();
+        servlet.contentType = "application/pdf";
+        final long before = count("unsupported");
+        final Document doc = new Document();
+        // The rest of the body is held back, so this only completes in time if the request is aborted.
+        extract("slow", "text/plain", doc).get(5, TimeUnit.SECONDS);
+        assertThat(doc.getField("body"), nullValue());
+        assertThat(count("unsupported"), is(before + 1));
+    }
+
+    @Test
+    public void timeoutDuringTransfer() throws Exception {
+        warmUp();
+        ini.setProperty("lucene.attachmentTimeout", 200);
+        configure();
+        final Document doc = new Document();
+        assertTimesOut(extract("slow", "text/plain", doc));
+        assertThat(doc.getField("body"), nullValue());
+        awaitNoSpoolFiles();
+    }
+
+    @Test
+    public void timeoutAfterSpooling() throws Exception {
+        warmUp();
+        // Tika stops after a few characters, the rest of the body is read after the text is spooled.
+        ini.setProperty("lucene.attachmentTimeout", 200);
+        ini.setProperty("lucene.maxExtractedChars", 4);
+        configure();
+        final Document doc = new Document();
+        assertTimesOut(extract("slow", "text/plain", doc));
+        assertThat(doc.getField("body"), nullValue());
+        awaitNoSpoolFiles();
+    }
+
+    @Test
+    public void fullQueueRunsOnCaller() throws Exception {
+        ini.setProperty("lucene.extractionThreads", 1);
+        ini.setProperty("lucene.extractionQueue", 1);
+        ini.setProperty("lucene.attachmentTimeout", 0);
+        configure();
+        final List<CompletableFuture<AttachmentExtractor.Fields>> futures = new ArrayList<>();
+        // One running, one queued.
+        futures.add(extract("slow", "text/plain", new Document()));
+        futures.add(extract("att", "text/plain", new Document()));
+        final Document doc = new Document();
+        final CompletableFuture<AttachmentExtractor.Fields> inline = extract("att", "text/plain", doc);
+        assertThat(inline.isDone(), is(true));
+        assertThat(futures.get(1).isDone(), is(false));
+        complete(inline);
+        assertThat(read(doc), is(TEXT));
+        servlet.release.countDown();
+        for (final CompletableFuture<AttachmentExtractor.Fields> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void fieldsAreOnlyAddedByCaller() throws Exception {
+        ini.setProperty("lucene.extractionThreads", 2);
+        configure();
+        final Document doc = new Document();
+        final List<CompletableFuture<AttachmentExtractor.Fields>> futures = new ArrayList<>();
+        futures.add(extract("att", "text/plain", doc));
+        futures.add(extract("other", "text/plain", doc));
+        for (final CompletableFuture<AttachmentExtractor.Fields> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(doc.getFields().size(), is(0));
+        AttachmentExtractor.apply(futures);
+        assertThat(doc.getFields("body").length, is(2));
+        for (final IndexableField field : doc.getFields("body")) {
+            field.readerValue().close();
+        }
+    }
+
+    /**
+     * Starts Tika and the server so timeouts only measure the transfer.
+     */
+    private void warmUp() throws Exception {
+        final Document doc = new Document();
+        complete(extract("att", "text/plain", doc));
+        // Deletes the spooled text.
+        read(doc);
+    }
+
+    private static void complete(final CompletableFuture<AttachmentExtractor.Fields> future) throws Exception {
+        future.get(10, TimeUnit.SECONDS);
+        AttachmentExtractor.apply(Collections.singleton(future));
+    }
+
+    private void configure() {
+        AttachmentExtractor.INSTANCE.setIni(ini);
+        ExtractionCache.INSTANCE.setIni(ini);
+        Tika.INSTANCE.setIni(ini);
+    }
+
+    private CompletableFuture<AttachmentExtractor.Fields> extract(final String name, final String contentType,
+                                            final Document out) throws Exception {
+        return extract(name, TEXT.length(), contentType, out);
+    }
+
+    private CompletableFuture<AttachmentExtractor.Fields> extract(final String name, final Integer length, final String contentType,
+                                            final Document out) throws Exception {
+        final JSONObject stub = new JSONObject();
+        stub.put("content_type", contentType);
+        if (length != null) {
+            stub.put("length", length);
+        }
+        final JSONObject json = new JSONObject();
+        json.put("_id", "doc1");
+        json.put("_attachments", new JSONObject().put(name, stub));
+        return AttachmentExtractor.INSTANCE.extract(database, new CouchDocument(json), name, "body", out);
+    }
+
+    private long count(final String name) throws Exception {
+        return AttachmentExtractor.INSTANCE.status().getLong(name);
+    }
+
+    private int spooled() {
+        final String[] files = new File(new File(dir, ExtractionCache.DIRNAME), "spool").list();
+        return files == null ? 0 : files.length;
+    }
+
+    private void awaitNoSpoolFiles() throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (spooled() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(spooled(), is(0));
+    }
+
+    private static void assertTimesOut(final CompletableFuture<AttachmentExtractor.Fields> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("extraction should have timed out");
+        } catch (final ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(TimeoutException.class));
+        }
+    }
+
+    private static String read(final Document doc) throws Exception {
+        final Reader reader = doc.getField("body").readerValue();
+        try {
+            return IOUtils.toString(reader).trim();
+        } finally {
+            reader.close();
+        }
+    }
+
+}
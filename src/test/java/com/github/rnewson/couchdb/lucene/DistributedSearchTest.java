@@ -0,0 +1,302 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DistributedSearchTest {
+
+    private static final String PATH = "/local/db/_design/foo/bar";
+
+    /**
+     * Stands in for a couchdb-lucene node, answering every search with the
+     * same response.
+     */
+    private static final class PeerServlet extends HttpServlet {
+
+        private volatile String body;
+
+        private volatile int status = 200;
+
+        private volatile long delay;
+
+        private volatile String lastLimit;
+
+        private volatile String lastSkip;
+
+        private volatile String lastLocal;
+
+        @Override
+        protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            lastLimit = req.getParameter("limit");
+            lastSkip = req.getParameter("skip");
+            lastLocal = req.getParameter("local");
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            resp.setStatus(status);
+            resp.setContentType("application/json");
+            resp.getWriter().write(body);
+        }
+
+    }
+
+    private final List<Server> servers = new ArrayList<>();
+
+    private final List<PeerServlet> peers = new ArrayList<>();
+
+    private CloseableHttpClient client;
+
+    private File dir;
+
+    private HierarchicalINIConfiguration ini;
+
+    private String coordinator;
+
+    @Before
+    public void setup() throws Exception {
+        client = HttpClients.createDefault();
+        dir = new File("target", "distributed-" + System.nanoTime());
+        final StringBuilder urls = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            final PeerServlet peer = new PeerServlet();
+            peers.add(peer);
+            if (i > 0) {
+                urls.append(',');
+            }
+            urls.append(start(peer));
+        }
+        ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.peers", urls.toString());
+        ini.setProperty("lucene.peerTimeout", 5000);
+        coordinator = start(new LuceneServlet(client, dir, ini));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        for (final Server server : servers) {
+            server.stop();
+        }
+        client.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void mergeByScore() throws Exception {
+        peers.get(0).body = response(3, row("a", 0.9), row("b", 0.5), row("c", 0.1));
+        peers.get(1).body = response(2, row("d", 0.8), row("e", 0.6));
+
+        final JSONObject result = new JSONObject(get("q=foo&skip=1&limit=3", 200));
+        assertThat(ids(result), is("d,e,b"));
+        assertThat(result.getInt("total_rows"), is(5));
+        assertThat(result.getInt("skip"), is(1));
+        assertThat(result.getInt("limit"), is(3));
+        assertThat(result.has("partial"), is(false));
+
+        for (final PeerServlet peer : peers) {
+            assertThat(peer.lastSkip, is("0"));
+            assertThat(peer.lastLimit, is("4"));
+            assertThat(peer.lastLocal, is("true"));
+        }
+    }
+
+    @Test
+    public void mergeBySortField() throws Exception {
+        peers.get(0).body = response(3, sorted("b", "cherry"), sorted("a", "apple"), sorted("c", null));
+        peers.get(1).body = response(2, sorted("e", "date"), sorted("d", "banana"));
+
+        final JSONObject result = new JSONObject(get("q=foo&sort=%5Cname%3Cstring%3E&limit=10", 200));
+        assertThat(ids(result), is("e,b,d,a,c"));
+        assertThat(result.getInt("total_rows"), is(5));
+    }
+
+    @Test
+    public void failedPeer() throws Exception {
+        peers.get(0).body = response(1, row("a", 0.9));
+        peers.get(1).status = 500;
+        peers.get(1).body = "{\"reason\":\"boom\"}";
+
+        final JSONObject error = new JSONObject(get("q=foo", 502));
+        assertThat(error.getJSONArray("failed_peers").length(), is(1));
+
+        final JSONObject result = new JSONObject(get("q=foo&partial=true", 200));
+        assertThat(ids(result), is("a"));
+        assertThat(result.getBoolean("partial"), is(true));
+        assertThat(result.getJSONArray("failed_peers").length(), is(1));
+    }
+
+    @Test
+    public void rejectedByAllPeers() throws Exception {
+        for (final PeerServlet peer : peers) {
+            peer.status = 400;
+            peer.body = "{\"reason\":\"Bad query syntax\"}";
+        }
+        final JSONObject error = new JSONObject(get("q=foo&partial=true", 400));
+        assertThat(error.getJSONArray("failed_peers").length(), is(2));
+    }
+
+    @Test
+    public void slowPeer() throws Exception {
+        ini.setProperty("lucene.peerTimeout", 200);
+        peers.get(0).body = response(1, row("a", 0.9));
+        peers.get(1).body = response(1, row("b", 0.8));
+        peers.get(1).delay = 2000;
+
+        final long start = System.currentTimeMillis();
+        final JSONObject result = new JSONObject(get("q=foo&partial=true", 200));
+        assertThat(System.currentTimeMillis() - start < 2000, is(true));
+        assertThat(ids(result), is("a"));
+        assertThat(result.getJSONArray("failed_peers").getJSONObject(0).getString("reason"), is("timeout"));
+    }
+
+    @Test
+    public void busyPeerThreadsRejectSearch() throws Exception {
+        ini.setProperty("lucene.peerThreads", 2);
+        coordinator = start(new LuceneServlet(client, dir, ini));
+        peers.get(0).body = response(1, row("a", 0.9));
+        peers.get(1).body = response(1, row("b", 0.8));
+        peers.get(0).delay = 1000;
+        peers.get(1).delay = 1000;
+
+        // The first search holds both threads until the peers answer.
+        final FutureTask<String> first = new FutureTask<>(new Callable<String>() {
+            public String call() throws Exception {
+                return get("q=foo", 200);
+            }
+        });
+        new Thread(first).start();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((peers.get(0).lastLimit == null || peers.get(1).lastLimit == null)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        final JSONObject rejected = new JSONObject(get("q=foo", 503));
+        assertThat(rejected.getString("reason"), is("too_many_searches"));
+        assertThat(ids(new JSONObject(first.get(10, TimeUnit.SECONDS))), is("a,b"));
+
+        peers.get(0).delay = 0;
+        peers.get(1).delay = 0;
+        assertThat(ids(new JSONObject(get("q=foo", 200))), is("a,b"));
+    }
+
+    @Test
+    public void localSearchIsNotDistributed() throws Exception {
+        peers.get(0).body = response(1, row("a", 0.9));
+        peers.get(1).body = response(1, row("b", 0.8));
+        // There is no CouchDB behind the coordinator, so the local search fails.
+        final HttpResponse response = client.execute(new HttpGet(coordinator + PATH + "?q=foo&local=true"));
+        EntityUtils.consume(response.getEntity());
+        assertThat(peers.get(0).lastLocal, nullValue());
+    }
+
+    private String start(final HttpServlet servlet) throws Exception {
+        final Server server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+        servers.add(server);
+        return "http://localhost:" + connector.getLocalPort();
+    }
+
+    private String get(final String query, final int expectedStatus) throws IOException {
+        final HttpGet get = new HttpGet(coordinator + PATH + "?force_json=true&" + query);
+        final HttpResponse response = client.execute(get);
+        try {
+            assertThat(response.getStatusLine().getStatusCode(), is(expectedStatus));
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    private static String ids(final JSONObject result) throws Exception {
+        final JSONArray rows = result.getJSONArray("rows");
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < rows.length(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(rows.getJSONObject(i).getString("id"));
+        }
+        return builder.toString();
+    }
+
+    private static String response(final int totalRows, final JSONObject... rows) throws Exception {
+        final JSONObject result = new JSONObject();
+        result.put("q", "default:foo");
+        result.put("total_rows", totalRows);
+        result.put("rows", new JSONArray());
+        for (final JSONObject row : rows) {
+            result.getJSONArray("rows").put(row);
+        }
+        return result.toString();
+    }
+
+    private static JSONObject row(final String id, final double score) throws Exception {
+        final JSONObject result = new JSONObject();
+        result.put("id", id);
+        result.put("score", score);
+        return result;
+    }
+
+    private static JSONObject sorted(final String id, final String name) throws Exception {
+        final JSONObject result = new JSONObject();
+        result.put("id", id);
+        result.put("sort_order", new JSONArray().put(name == null ? JSONObject.NULL : name));
+        return result;
+    }
+
+}
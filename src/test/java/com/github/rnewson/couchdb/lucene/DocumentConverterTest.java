@@ -19,6 +19,7 @@ package com.github.rnewson.couchdb.lucene;
 import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
 import com.github.rnewson.couchdb.lucene.couchdb.View;
 import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import com.github.rnewson.couchdb.lucene.rhino.FunctionCache;
 import com.github.rnewson.couchdb.lucene.util.Constants;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.IntPoint;
@@ -316,6 +317,42 @@ public class DocumentConverterTest {
         assertThat(result.size(), is(0));
     }
 
+    @Test
+    public void testGlobalsAreNotShared() throws Exception {
+        final String fun = "function(doc) {if (typeof seen != 'undefined') {return null;} seen = true; return new Document();}";
+        final DocumentConverter first = new DocumentConverter(context, view(fun));
+        final DocumentConverter second = new DocumentConverter(context, view(fun));
+        assertThat(first.convert(doc("{_id:\"hello\"}"), settings(), null).size(), is(1));
+        assertThat(first.convert(doc("{_id:\"hello\"}"), settings(), null).size(), is(0));
+        assertThat(second.convert(doc("{_id:\"hello\"}"), settings(), null).size(), is(1));
+    }
+
+    @Test
+    public void testCompiledFunctionIsShared() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) {var shared = true; return new Document();}");
+        final View first = new View("first", json);
+        final View second = new View("second", json);
+        assertThat(second.getDigest(), is(first.getDigest()));
+
+        final int before = FunctionCache.size();
+        final DocumentConverter one = new DocumentConverter(context, first);
+        final DocumentConverter two = new DocumentConverter(context, second);
+        assertThat(FunctionCache.size(), is(before + 1));
+        assertThat(one.convert(doc("{_id:\"hello\"}"), settings(), null).size(), is(1));
+        assertThat(two.convert(doc("{_id:\"hello\"}"), settings(), null).size(), is(1));
+
+        new DocumentConverter(context, view("function(doc) {var other = true; return new Document();}"));
+        assertThat(FunctionCache.size(), is(before + 2));
+    }
+
+    @Test
+    public void testTrailingComment() throws Exception {
+        final DocumentConverter converter = new DocumentConverter(context,
+                view("function(doc) {return new Document();} // done"));
+        assertThat(converter.convert(doc("{_id:\"hello\"}"), settings(), null).size(), is(1));
+    }
+
     private CouchDocument doc(final String json) throws JSONException {
         return new CouchDocument(new JSONObject(json));
     }
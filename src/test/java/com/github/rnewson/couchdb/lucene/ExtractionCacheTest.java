@@ -0,0 +1,173 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.document.Document;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ExtractionCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("extracted").toFile();
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.dir", dir.getPath());
+        ExtractionCache.INSTANCE.setIni(ini);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.extractionCache", false);
+        ExtractionCache.INSTANCE.setIni(ini);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final String digest = "md5-1B2M2Y8AsgTpgAmY7PhCfg==";
+        assertThat(ExtractionCache.INSTANCE.get(digest), is(nullValue()));
+        final ExtractedText put = ExtractionCache.INSTANCE.put(digest, spool("hello"));
+        assertThat(put.isTemporary(), is(false));
+
+        final ExtractedText cached = ExtractionCache.INSTANCE.get(digest);
+        assertThat(read(cached), is("hello"));
+        assertThat(cached.getMetadata().getString("title"), is("greeting"));
+        assertThat(new File(dir, ExtractionCache.DIRNAME).isDirectory(), is(true));
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvicted() throws Exception {
+        ExtractionCache.INSTANCE.put("a", spool("apple"));
+        ExtractionCache.INSTANCE.put("b", spool("banana"));
+        final long entryBytes = cacheBytes() / 2;
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.dir", dir.getPath());
+        ini.setProperty("lucene.extractionCacheMB", entryBytes * 2.5 / 1024 / 1024);
+        ExtractionCache.INSTANCE.setIni(ini);
+
+        // Both entries were last used a while ago, then "a" is read again.
+        for (final File file : FileUtils.listFiles(new File(dir, ExtractionCache.DIRNAME), null, true)) {
+            file.setLastModified(System.currentTimeMillis() - 60000);
+        }
+        assertThat(read(ExtractionCache.INSTANCE.get("a")), is("apple"));
+
+        final long evictions = ExtractionCache.INSTANCE.status().getLong("evictions");
+        ExtractionCache.INSTANCE.put("c", spool("cherry"));
+        assertThat(ExtractionCache.INSTANCE.get("b"), is(nullValue()));
+        assertThat(read(ExtractionCache.INSTANCE.get("a")), is("apple"));
+        assertThat(read(ExtractionCache.INSTANCE.get("c")), is("cherry"));
+        assertThat(ExtractionCache.INSTANCE.status().getLong("evictions"), is(evictions + 1));
+        assertThat(cacheBytes() <= entryBytes * 2.5, is(true));
+    }
+
+    @Test
+    public void evictedAfterGetIsStillIndexed() throws Exception {
+        ExtractionCache.INSTANCE.put("a", spool("apple"));
+        final ExtractedText cached = ExtractionCache.INSTANCE.get("a");
+        final Document doc = new Document();
+        cached.addFields("body", doc);
+        FileUtils.cleanDirectory(new File(dir, ExtractionCache.DIRNAME));
+
+        final Reader reader = doc.getField("body").readerValue();
+        try {
+            assertThat(IOUtils.toString(reader), is("apple"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void missingTextIsMiss() throws Exception {
+        ExtractionCache.INSTANCE.put("a", spool("apple"));
+        for (final File file : FileUtils.listFiles(new File(dir, ExtractionCache.DIRNAME), new String[]{"gz"}, true)) {
+            file.delete();
+        }
+        final long misses = ExtractionCache.INSTANCE.status().getLong("misses");
+        assertThat(ExtractionCache.INSTANCE.get("a"), is(nullValue()));
+        assertThat(ExtractionCache.INSTANCE.status().getLong("misses"), is(misses + 1));
+    }
+
+    @Test
+    public void noDigest() throws Exception {
+        final ExtractedText spooled = spool("hello");
+        assertThat(ExtractionCache.INSTANCE.put(null, spooled), is(spooled));
+        assertThat(ExtractionCache.INSTANCE.get(null), is(nullValue()));
+        spooled.getFile().delete();
+    }
+
+    @Test
+    public void spoolDeletedOnceIndexed() throws Exception {
+        final ExtractedText spooled = spool("hello");
+        final Document doc = new Document();
+        spooled.addFields("body", doc);
+        assertThat(doc.get("_dc.title"), is("greeting"));
+
+        final Reader reader = doc.getField("body").readerValue();
+        assertThat(IOUtils.toString(reader), is("hello"));
+        reader.close();
+        assertThat(spooled.getFile().exists(), is(false));
+    }
+
+    private ExtractedText spool(final String text) throws Exception {
+        final File file = ExtractionCache.INSTANCE.newSpoolFile();
+        final Writer writer = ExtractedText.newWriter(file);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        return new ExtractedText(file, new JSONObject("{\"title\":\"greeting\"}"), true);
+    }
+
+    private long cacheBytes() {
+        long result = 0;
+        for (final File file : FileUtils.listFiles(new File(dir, ExtractionCache.DIRNAME), null, true)) {
+            if (!file.getParentFile().getName().equals("spool")) {
+                result += file.length();
+            }
+        }
+        return result;
+    }
+
+    private String read(final ExtractedText text) throws Exception {
+        final Reader reader = text.newReader();
+        try {
+            return IOUtils.toString(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class FieldLoaderTest {
+
+    private DirectoryReader reader;
+
+    private IndexSearcher searcher;
+
+    @Before
+    public void setup() throws Exception {
+        final IndexWriter writer = new IndexWriter(new RAMDirectory(),
+                new IndexWriterConfig(new StandardAnalyzer()));
+
+        final Document doc = new Document();
+        doc.add(Utils.token("_id", "doc1", true));
+        doc.add(new BinaryDocValuesField("_id", new BytesRef("doc1")));
+        add(doc, "title", FieldType.TEXT, "yes", "hello there");
+        add(doc, "category", FieldType.STRING, "no", "news");
+        add(doc, "count", FieldType.INT, "no", 12);
+        add(doc, "price", FieldType.FLOAT, "no", 1.5f);
+        add(doc, "ratio", FieldType.DOUBLE, "no", 0.25);
+        add(doc, "created", FieldType.DATE, "no", "2009-01-01");
+        writer.addDocument(doc);
+
+        // A document written before _id had doc values.
+        final Document old = new Document();
+        old.add(Utils.token("_id", "doc2", true));
+        writer.addDocument(old);
+
+        writer.commit();
+        reader = DirectoryReader.open(writer);
+        searcher = new IndexSearcher(reader);
+        writer.close();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        reader.close();
+    }
+
+    @Test
+    public void allStoredFields() throws Exception {
+        final Document doc = new FieldLoader(null).load(searcher, 0);
+        assertThat(doc.get("_id"), is("doc1"));
+        assertThat(doc.get("title"), is("hello there"));
+        assertThat(doc.get("category"), nullValue());
+    }
+
+    @Test
+    public void docValues() throws Exception {
+        final Document doc = new FieldLoader("category<string>,count<int>,price<float>,ratio<double>,created<date>")
+                .load(searcher, 0);
+        assertThat(doc.get("_id"), is("doc1"));
+        assertThat(doc.get("category"), is("news"));
+        assertThat(doc.getField("count").numericValue(), is((Number) 12));
+        assertThat(doc.getField("price").numericValue(), is((Number) 1.5f));
+        assertThat(doc.getField("ratio").numericValue(), is((Number) 0.25));
+        assertThat(doc.getField("created").numericValue(), is((Number) FieldType.toDate("2009-01-01")));
+        assertThat(doc.get("title"), nullValue());
+    }
+
+    @Test
+    public void untypedFieldsMustBeStored() throws Exception {
+        final Document doc = new FieldLoader("category,title").load(searcher, 0);
+        assertThat(doc.get("_id"), is("doc1"));
+        assertThat(doc.get("category"), nullValue());
+        assertThat(doc.get("title"), is("hello there"));
+    }
+
+    @Test
+    public void untypedNumericIsNotDecoded() throws Exception {
+        final Document doc = new FieldLoader("count").load(searcher, 0);
+        assertThat(doc.getField("count"), nullValue());
+    }
+
+    @Test
+    public void storedFallback() throws Exception {
+        assertThat(new FieldLoader("title").load(searcher, 0).get("title"), is("hello there"));
+        assertThat(new FieldLoader("title").load(searcher, 1).get("_id"), is("doc2"));
+    }
+
+    private static void add(final Document doc, final String name, final FieldType type, final String store,
+                            final Object value) throws Exception {
+        final JSONObject settings = new JSONObject();
+        settings.put("store", store);
+        type.addFields(name, value, new ViewSettings(settings), doc);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HitCounterTest {
+
+    private DirectoryReader reader;
+
+    private IndexSearcher searcher;
+
+    @Before
+    public void setup() throws Exception {
+        final IndexWriter writer = new IndexWriter(new RAMDirectory(),
+                new IndexWriterConfig(new StandardAnalyzer()));
+        for (int i = 0; i < 100; i++) {
+            final Document doc = new Document();
+            doc.add(Utils.token("_id", "doc" + i, true));
+            doc.add(Utils.token("parity", i % 2 == 0 ? "even" : "odd", false));
+            doc.add(new IntPoint("num", i));
+            writer.addDocument(doc);
+            if (i % 10 == 9) {
+                writer.commit();
+            }
+        }
+        writer.deleteDocuments(new Term("_id", "doc0"));
+        writer.commit();
+        reader = DirectoryReader.open(writer);
+        searcher = new IndexSearcher(reader);
+        writer.close();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        reader.close();
+    }
+
+    @Test
+    public void matchAll() throws Exception {
+        assertThat(HitCounter.count(searcher, new MatchAllDocsQuery()), is(99));
+    }
+
+    @Test
+    public void termWithDeletions() throws Exception {
+        assertThat(HitCounter.count(searcher, new TermQuery(new Term("parity", "even"))), is(49));
+        assertThat(HitCounter.count(searcher, new TermQuery(new Term("parity", "odd"))), is(50));
+    }
+
+    @Test
+    public void range() throws Exception {
+        assertThat(HitCounter.count(searcher, IntPoint.newRangeQuery("num", 0, 19)), is(19));
+    }
+
+    @Test
+    public void threshold() throws Exception {
+        assertThat(HitCounter.count(searcher, new MatchAllDocsQuery(), 10), is(10));
+        assertThat(HitCounter.count(searcher, IntPoint.newRangeQuery("num", 0, 49), 25), is(25));
+        assertThat(HitCounter.count(searcher, IntPoint.newRangeQuery("num", 0, 4), 25), is(4));
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HttpClientFactoryTest {
+
+    private static final byte[] BODY = new byte[4096];
+
+    static {
+        Arrays.fill(BODY, (byte) 'a');
+    }
+
+    /**
+     * Stands in for CouchDB, answering /identity and /gzip with the same
+     * body and /slow after a second.
+     */
+    private static final class CouchServlet extends HttpServlet {
+
+        @Override
+        protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            final byte[] body;
+            if ("/gzip".equals(req.getPathInfo())) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (final GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(BODY);
+                }
+                body = out.toByteArray();
+                resp.setHeader("Content-Encoding", "gzip");
+            } else {
+                if ("/slow".equals(req.getPathInfo())) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                body = BODY;
+            }
+            resp.setContentType("text/plain");
+            resp.setContentLength(body.length);
+            resp.getOutputStream().write(body);
+        }
+
+    }
+
+    private final List<Server> servers = new ArrayList<>();
+
+    private String fast;
+
+    private String other;
+
+    private HttpClient client;
+
+    @Before
+    public void setup() throws Exception {
+        fast = start();
+        other = start();
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.maxConnectionsPerCouch", 7);
+        ini.setProperty("lucene.connectionIdleTimeout", 1);
+        ini.setProperty("fast.url", fast + "/");
+        ini.setProperty("fast.socketTimeout", 200);
+        ini.setProperty("fast.maxConnections", 1);
+        ini.setProperty("other.url", other + "/");
+        HttpClientFactory.reset();
+        HttpClientFactory.setIni(ini);
+        client = HttpClientFactory.getInstance();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        HttpClientFactory.reset();
+        HttpClientFactory.setIni(null);
+        for (final Server server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void sectionTimeoutsApplyToTheirServer() throws Exception {
+        try {
+            get(fast + "/slow");
+            fail("the fast section's socketTimeout should apply");
+        } catch (final SocketTimeoutException e) {
+            // expected.
+        }
+        assertThat(get(other + "/slow").length, is(BODY.length));
+    }
+
+    @Test
+    public void sectionMaxConnectionsApplyToTheirRoute() throws Exception {
+        get(fast + "/identity");
+        get(other + "/identity");
+        final JSONObject routes = HttpClientFactory.status().getJSONObject("routes");
+        assertThat(routes.getJSONObject(fast).getInt("max"), is(1));
+        assertThat(routes.getJSONObject(other).getInt("max"), is(7));
+    }
+
+    @Test
+    public void idleConnectionsAreClosed() throws Exception {
+        get(other + "/identity");
+        assertThat(available(), is(1));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (available() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(available(), is(0));
+    }
+
+    @Test
+    public void identityBytesAreCountedOnce() throws Exception {
+        final JSONObject before = HttpClientFactory.status();
+        assertThat(get(other + "/identity").length, is(BODY.length));
+        final JSONObject after = HttpClientFactory.status();
+        assertThat(delta(before, after, "wire_bytes"), is((long) BODY.length));
+        assertThat(delta(before, after, "decoded_bytes"), is((long) BODY.length));
+        assertThat(delta(before, after, "compressed_responses"), is(0L));
+    }
+
+    @Test
+    public void gzipBytesAreCountedBeforeAndAfterDecoding() throws Exception {
+        final JSONObject before = HttpClientFactory.status();
+        assertThat(get(other + "/gzip"), is(BODY));
+        final JSONObject after = HttpClientFactory.status();
+        final long wire = delta(before, after, "wire_bytes");
+        assertThat(wire > 0 && wire < BODY.length, is(true));
+        assertThat(delta(before, after, "decoded_bytes"), is((long) BODY.length));
+        assertThat(delta(before, after, "compressed_responses"), is(1L));
+    }
+
+    @Test
+    public void reuseIsCountedFromLeases() throws Exception {
+        final JSONObject before = HttpClientFactory.status();
+        get(other + "/identity");
+        get(other + "/identity");
+        get(fast + "/identity");
+        final JSONObject after = HttpClientFactory.status();
+        assertThat(delta(before, after, "leased"), is(3L));
+        assertThat(delta(before, after, "connections_opened"), is(2L));
+        assertThat(delta(before, after, "reused"), is(1L));
+    }
+
+    private String start() throws Exception {
+        final Server server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(new CouchServlet()), "/*");
+        server.setHandler(context);
+        server.start();
+        servers.add(server);
+        return "http://localhost:" + connector.getLocalPort();
+    }
+
+    private byte[] get(final String url) throws IOException {
+        final HttpResponse response = client.execute(new HttpGet(url));
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+        return EntityUtils.toByteArray(response.getEntity());
+    }
+
+    private int available() throws Exception {
+        return HttpClientFactory.status().getJSONObject("pool").getInt("available");
+    }
+
+    private long delta(final JSONObject before, final JSONObject after, final String key) throws Exception {
+        return after.getLong(key) - before.getLong(key);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import com.github.rnewson.couchdb.lucene.rhino.BudgetContextFactory;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import java.util.ArrayList;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class IndexFunctionEnginesTest {
+
+    private TimeZone tz;
+
+    // Rhino keeps the time zone it first sees, so match DocumentConverterTest.
+    @Before
+    public void setup() {
+        tz = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/London"));
+    }
+
+    @After
+    public void teardown() {
+        TimeZone.setDefault(tz);
+        BudgetContextFactory.setIni(new HierarchicalINIConfiguration());
+    }
+
+    @Test
+    public void defaultEngineIsJavascript() throws Exception {
+        final View view = new View(null, new JSONObject("{\"index\":\"function(doc) {return new Document();}\"}"));
+        final IndexFunction fun = IndexFunctionEngines.get(view.getEngine()).compile(view);
+        assertThat(Context.getCurrentContext(), is(nullValue()));
+        assertThat(fun.convert(new CouchDocument(new JSONObject("{_id:\"hello\"}")),
+                ViewSettings.getDefaultSettings(), null, new ArrayList<CompletableFuture<AttachmentExtractor.Fields>>()).size(), is(1));
+    }
+
+    @Test(expected = BudgetExceededException.class)
+    public void runawayFunction() throws Exception {
+        convert("function(doc) {while (true) {}}");
+    }
+
+    @Test(expected = BudgetExceededException.class)
+    public void runawayFunctionCannotCatchBudget() throws Exception {
+        convert("function(doc) {try {for (;;) {}} catch (e) {} finally {} return new Document();}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEngine() {
+        IndexFunctionEngines.get("cobol");
+    }
+
+    private void convert(final String fun) throws Exception {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.indexFunctionTimeout", 100);
+        BudgetContextFactory.setIni(ini);
+        final View view = new View(null, new JSONObject().put("index", fun));
+        IndexFunctionEngines.get(view.getEngine()).compile(view)
+                .convert(new CouchDocument(new JSONObject("{_id:\"hello\"}")), ViewSettings.getDefaultSettings(), null,
+                        new ArrayList<CompletableFuture<AttachmentExtractor.Fields>>());
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IndexShardsTest {
+
+    private static final int SHARDS = 4;
+
+    private IndexShards shards;
+
+    @Before
+    public void setup() throws Exception {
+        final IndexWriter[] writers = new IndexWriter[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            writers[i] = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(new StandardAnalyzer()));
+        }
+        shards = new IndexShards(writers);
+        for (int i = 0; i < 100; i++) {
+            shards.update("doc" + i, Collections.singletonList(doc(i)));
+        }
+    }
+
+    @After
+    public void teardown() throws Exception {
+        shards.rollback();
+    }
+
+    @Test
+    public void shardDirs() {
+        final File dir = new File("view");
+        assertThat(IndexShards.shardDirs(dir, 1)[0], is(dir));
+        assertThat(IndexShards.shardDirs(dir, 3)[2], is(new File(dir, "shard2")));
+    }
+
+    @Test
+    public void routing() throws Exception {
+        final IndexReader reader = shards.openReader(true);
+        try {
+            final List<DirectoryReader> shardReaders = IndexShards.shardReaders(reader);
+            assertThat(shardReaders.size(), is(SHARDS));
+            assertThat(reader.numDocs(), is(100));
+            for (int i = 0; i < SHARDS; i++) {
+                final IndexSearcher searcher = new IndexSearcher(shardReaders.get(i));
+                assertThat(shardReaders.get(i).numDocs() > 0, is(true));
+                for (int j = 0; j < 100; j++) {
+                    final int hits = searcher.count(new TermQuery(new Term("_id", "doc" + j)));
+                    assertThat(hits, is(IndexShards.shardOf("doc" + j, SHARDS) == i ? 1 : 0));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void updateAndDelete() throws Exception {
+        shards.update("doc1", Collections.singletonList(doc(1)));
+        shards.delete("doc2");
+        final IndexReader reader = shards.openReader(true);
+        try {
+            final IndexSearcher searcher = shards.newSearcher(reader);
+            assertThat(searcher.count(new MatchAllDocsQuery()), is(99));
+            assertThat(searcher.count(new TermQuery(new Term("_id", "doc1"))), is(1));
+            assertThat(searcher.count(new TermQuery(new Term("_id", "doc2"))), is(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void sortedSearch() throws Exception {
+        final IndexReader reader = shards.openReader(true);
+        try {
+            final IndexSearcher searcher = shards.newSearcher(reader);
+            final Sort sort = new Sort(new SortField("num", SortField.Type.INT, true));
+            final TopDocs td = searcher.search(new MatchAllDocsQuery(), 10, sort);
+            assertThat(td.totalHits, is(100));
+            for (int i = 0; i < 10; i++) {
+                assertThat(searcher.doc(td.scoreDocs[i].doc).get("_id"), is("doc" + (99 - i)));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void commit() throws Exception {
+        final Map<String, String> userData = new HashMap<>();
+        userData.put("last_seq", "100");
+        shards.commit(userData);
+        for (int i = 0; i < SHARDS; i++) {
+            final DirectoryReader reader = DirectoryReader.open(shards.getWriter(i).getDirectory());
+            try {
+                assertThat(reader.getIndexCommit().getUserData().get("last_seq"), is("100"));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void rejectedDocumentIsSkipped() throws Exception {
+        final Document bad = doc(1000);
+        bad.add(new NumericDocValuesField("num", 1001));
+        shards.update("doc1000", Collections.singletonList(bad));
+        shards.drain();
+        shards.update("doc1001", Collections.singletonList(doc(1001)));
+        final IndexReader reader = shards.openReader(true);
+        try {
+            assertThat(reader.numDocs(), is(101));
+        } finally {
+            reader.close();
+        }
+        shards.commit(new HashMap<String, String>());
+    }
+
+    @Test
+    public void writerThreadsAreShared() throws Exception {
+        final List<IndexShards> views = new ArrayList<>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                final IndexWriter[] writers = new IndexWriter[SHARDS];
+                for (int j = 0; j < SHARDS; j++) {
+                    writers[j] = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(new StandardAnalyzer()));
+                }
+                final IndexShards view = new IndexShards(writers);
+                views.add(view);
+                for (int j = 0; j < 20; j++) {
+                    view.update("doc" + j, Collections.singletonList(doc(j)));
+                }
+            }
+            int threads = 0;
+            for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("couchdb-lucene-shard-")) {
+                    threads++;
+                }
+            }
+            assertThat(threads <= Runtime.getRuntime().availableProcessors(), is(true));
+            for (final IndexShards view : views) {
+                view.drain();
+            }
+        } finally {
+            for (final IndexShards view : views) {
+                view.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void singleShard() throws Exception {
+        final IndexShards single = new IndexShards(
+                new IndexWriter(new RAMDirectory(), new IndexWriterConfig(new StandardAnalyzer())));
+        try {
+            single.update("doc1", Collections.singletonList(doc(1)));
+            final IndexReader reader = single.openReader(true);
+            try {
+                assertThat(reader instanceof DirectoryReader, is(true));
+                assertThat(reader.numDocs(), is(1));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            single.rollback();
+        }
+    }
+
+    private static Document doc(final int num) {
+        final Document result = new Document();
+        result.add(Utils.token("_id", "doc" + num, true));
+        result.add(new NumericDocValuesField("num", num));
+        return result;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IndexingMemoryManagerTest {
+
+    private IndexWriter busy;
+
+    private IndexWriter idle;
+
+    @Before
+    public void setup() throws Exception {
+        busy = newWriter();
+        idle = newWriter();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        IndexingMemoryManager.unregister(busy);
+        IndexingMemoryManager.unregister(idle);
+        busy.close();
+        idle.close();
+        IndexingMemoryManager.setIni(new HierarchicalINIConfiguration());
+    }
+
+    @Test
+    public void flushLargestWriter() throws Exception {
+        addDocuments(idle, 1);
+        addDocuments(busy, 1000);
+        final long idleBytes = idle.ramBytesUsed();
+        final long busyBytes = busy.ramBytesUsed();
+        assertThat(busyBytes > idleBytes * 2, is(true));
+
+        // Room for the idle writer but not the busy one.
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.indexingBufferMB", idleBytes * 2 / 1024.0 / 1024.0);
+        IndexingMemoryManager.setIni(ini);
+
+        IndexingMemoryManager.checkBudget();
+        assertThat(busy.ramBytesUsed() < busyBytes, is(true));
+        assertThat(idle.ramBytesUsed(), is(idleBytes));
+    }
+
+    @Test
+    public void checkedOncePerInterval() throws Exception {
+        addDocuments(busy, 1000);
+        final long busyBytes = busy.ramBytesUsed();
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.indexingBufferMB", busyBytes / 2 / 1024.0 / 1024.0);
+        IndexingMemoryManager.setIni(ini);
+
+        int calls = 0;
+        while (busy.ramBytesUsed() == busyBytes && calls < 1000) {
+            IndexingMemoryManager.maybeFlush();
+            calls++;
+        }
+        assertThat(calls <= IndexingMemoryManager.CHECK_INTERVAL, is(true));
+        assertThat(busy.ramBytesUsed() < busyBytes, is(true));
+    }
+
+    @Test
+    public void underBudget() throws Exception {
+        addDocuments(busy, 10);
+        final long busyBytes = busy.ramBytesUsed();
+        IndexingMemoryManager.checkBudget();
+        assertThat(busy.ramBytesUsed(), is(busyBytes));
+    }
+
+    private static IndexWriter newWriter() throws Exception {
+        final IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setRAMBufferSizeMB(IndexingMemoryManager.getBudgetMB());
+        final IndexWriter result = new IndexWriter(new RAMDirectory(), config);
+        IndexingMemoryManager.register(result);
+        return result;
+    }
+
+    private static void addDocuments(final IndexWriter writer, final int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final Document doc = new Document();
+            doc.add(Utils.token("_id", "doc" + i, true));
+            doc.add(Utils.text("body", "the quick brown fox jumped over the lazy dog " + i, false));
+            writer.addDocument(doc);
+        }
+    }
+
+}
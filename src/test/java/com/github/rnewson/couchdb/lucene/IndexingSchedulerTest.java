@@ -0,0 +1,160 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IndexingSchedulerTest {
+
+    /**
+     * Stands in for CouchDB, serving an empty database whose first changes
+     * request does not answer until released.
+     */
+    private static final class CouchServlet extends HttpServlet {
+
+        private final String uuid = UUID.randomUUID().toString();
+
+        private final AtomicInteger changes = new AtomicInteger();
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            final String uri = req.getRequestURI();
+            final JSONObject json = new JSONObject();
+            try {
+                if (uri.endsWith("/_all_docs")) {
+                    json.put("rows", new JSONArray());
+                } else if (uri.contains("_local")) {
+                    json.put("_id", "_local/lucene");
+                    json.put("uuid", uuid);
+                } else if (uri.endsWith("/_changes")) {
+                    if (changes.incrementAndGet() == 1) {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    json.put("results", new JSONArray());
+                    json.put("last_seq", "0");
+                } else {
+                    json.put("db_name", "db");
+                    json.put("update_seq", "0");
+                }
+            } catch (final Exception e) {
+                throw new IOException(e);
+            }
+            resp.setContentType("application/json");
+            resp.getWriter().write(json.toString());
+        }
+
+    }
+
+    private final CouchServlet couch = new CouchServlet();
+
+    private Server server;
+
+    private CloseableHttpClient client;
+
+    private File dir;
+
+    private IndexingScheduler scheduler;
+
+    private DatabaseIndexer indexer;
+
+    @Before
+    public void setup() throws Exception {
+        server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(couch), "/*");
+        server.setHandler(context);
+        server.start();
+
+        client = HttpClients.createDefault();
+        dir = new File("target", "scheduler-" + System.nanoTime());
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        // Long enough that only a wakeup can run the indexer again.
+        ini.setProperty("lucene.pollInterval", 60000);
+        ini.setProperty("lucene.maxPollInterval", 60000);
+        scheduler = new IndexingScheduler(ini);
+        final Database database = new Database(client, "http://localhost:" + connector.getLocalPort() + "/db");
+        indexer = new DatabaseIndexer(client, dir, database, ini, scheduler);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        couch.release.countDown();
+        indexer.evict();
+        scheduler.wakeup(indexer);
+        indexer.awaitClose(5000);
+        scheduler.shutdown();
+        client.close();
+        server.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void wakeupDuringRunReschedulesImmediately() throws Exception {
+        scheduler.submit(indexer);
+        awaitChanges(1);
+
+        // The first run is waiting for CouchDB.
+        scheduler.wakeup(indexer);
+        couch.release.countDown();
+        awaitChanges(2);
+        assertThat(couch.changes.get(), is(2));
+
+        // Without another wakeup the indexer waits for its poll interval.
+        Thread.sleep(500);
+        assertThat(couch.changes.get(), is(2));
+    }
+
+    private void awaitChanges(final int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (couch.changes.get() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rnewson.couchdb.lucene;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LuceneServletTest {
+
+    private static final String PATH = "/local/db/_design/foo/bar";
+
+    /**
+     * Stands in for CouchDB, serving one empty database with one index.
+     */
+    private static final class CouchServlet extends HttpServlet {
+
+        private final String uuid = UUID.randomUUID().toString();
+
+        private volatile long delay;
+
+        @Override
+        protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            final String uri = req.getRequestURI();
+            final JSONObject json = new JSONObject();
+            try {
+                if (uri.endsWith("/_all_docs")) {
+                    final JSONObject index = new JSONObject();
+                    index.put("index", "function(doc) {return null;}");
+                    final JSONObject doc = new JSONObject();
+                    doc.put("_id", "_design/foo");
+                    doc.put("fulltext", new JSONObject().put("bar", index));
+                    json.put("rows", new JSONArray().put(new JSONObject().put("doc", doc)));
+                } else if (uri.contains("_local")) {
+                    json.put("_id", "_local/lucene");
+                    json.put("uuid", uuid);
+                } else if (uri.endsWith("/_changes")) {
+                    json.put("results", new JSONArray());
+                    json.put("last_seq", "0");
+                } else {
+                    Thread.sleep(delay);
+                    json.put("db_name", "db");
+                    json.put("update_seq", "0");
+                }
+            } catch (final Exception e) {
+                throw new IOException(e);
+            }
+            resp.setContentType("application/json");
+            resp.getWriter().write(json.toString());
+        }
+
+    }
+
+    private final List<Server> servers = new ArrayList<>();
+
+    private final CouchServlet couch = new CouchServlet();
+
+    private CloseableHttpClient client;
+
+    private File dir;
+
+    private HierarchicalINIConfiguration ini;
+
+    private String lucene;
+
+    @Before
+    public void setup() throws Exception {
+        client = HttpClients.custom().setMaxConnPerRoute(10).setMaxConnTotal(20).build();
+        dir = new File("target", "servlet-" + System.nanoTime());
+        ini = new HierarchicalINIConfiguration();
+        ini.setProperty("local.url", start(couch) + "/");
+        ini.setProperty("lucene.pollInterval", 100);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        for (final Server server : servers) {
+            server.stop();
+        }
+        client.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void idleIndexerIsClosedAndReopened() throws Exception {
+        ini.setProperty("lucene.idleTimeout", 1);
+        startLucene();
+        assertThat(get(PATH), is(200));
+        assertThat(indexers(), is(1));
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (indexers() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(indexers(), is(0));
+
+        assertThat(get(PATH), is(200));
+        assertThat(indexers(), is(1));
+    }
+
+    @Test
+    public void concurrentFirstRequestsShareOneIndexer() throws Exception {
+        startLucene();
+        // Both requests arrive while the first is still starting the indexer.
+        couch.delay = 500;
+        final List<FutureTask<Integer>> requests = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final FutureTask<Integer> request = new FutureTask<>(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return get(PATH);
+                }
+            });
+            requests.add(request);
+            new Thread(request).start();
+        }
+        for (final FutureTask<Integer> request : requests) {
+            assertThat(request.get(10, TimeUnit.SECONDS), is(200));
+        }
+        assertThat(indexers(), is(1));
+    }
+
+    private void startLucene() throws Exception {
+        lucene = start(new LuceneServlet(client, dir, ini));
+    }
+
+    private String start(final HttpServlet servlet) throws Exception {
+        final Server server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+        servers.add(server);
+        return "http://localhost:" + connector.getLocalPort();
+    }
+
+    private int get(final String path) throws IOException {
+        final HttpResponse response = client.execute(new HttpGet(lucene + path));
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * @return the number of indexers the scheduler is running.
+     */
+    private int indexers() throws Exception {
+        final HttpResponse response = client.execute(new HttpGet(lucene + "/"));
+        final JSONObject welcome = new JSONObject(EntityUtils.toString(response.getEntity()));
+        return welcome.getJSONObject("indexing").getInt("indexers");
+    }
+
+}
@@ -55,4 +55,16 @@ public class PathPartsTest {
         assertThat(parts.getCommand(), is("_cleanup"));
     }
 
+    @Test
+    public void testRootPath() {
+        final PathParts parts = new PathParts("/");
+        assertThat(parts.getDepth(), is(1));
+        assertThat(parts.getKey(), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPath() {
+        new PathParts("/local/db1");
+    }
+
 }
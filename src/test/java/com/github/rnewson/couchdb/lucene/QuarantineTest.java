@@ -0,0 +1,64 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class QuarantineTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("quarantine").toFile();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        final Quarantine quarantine = new Quarantine(dir);
+        quarantine.add("foo", "1-abc");
+        quarantine.add("bar", "2-def");
+        quarantine.remove("bar");
+
+        final Quarantine reopened = new Quarantine(dir);
+        assertThat(reopened.contains("foo", "1-abc"), is(true));
+        assertThat(reopened.contains("bar", "2-def"), is(false));
+        assertThat(reopened.toJSON().toString(), is("{\"foo\":\"1-abc\"}"));
+    }
+
+    @Test
+    public void newRevisionIsRetried() throws Exception {
+        final Quarantine quarantine = new Quarantine(dir);
+        quarantine.add("foo", "1-abc");
+        assertThat(quarantine.contains("foo", "2-def"), is(false));
+    }
+
+}
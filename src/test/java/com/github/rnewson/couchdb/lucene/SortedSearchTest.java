@@ -0,0 +1,132 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.RAMDirectory;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SortedSearchTest {
+
+    private Sort indexSort;
+
+    private DirectoryReader reader;
+
+    private IndexSearcher searcher;
+
+    @Before
+    public void setup() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        json.put("index_sort", "num<int>");
+        final View view = new View(null, json);
+        indexSort = CustomQueryParser.toSort(view.getIndexSort());
+
+        final IndexWriter writer = new IndexWriter(new RAMDirectory(),
+                new IndexWriterConfig(new StandardAnalyzer()).setIndexSort(indexSort));
+        // Added in reverse so the index sort has to reorder them.
+        for (int i = 99; i >= 0; i--) {
+            add(writer, i);
+            if (i % 25 == 0) {
+                writer.commit();
+            }
+        }
+        // Only merged segments are sorted.
+        writer.forceMerge(1);
+        // A newly flushed, unsorted segment holding the lowest values.
+        for (int i = -1; i >= -10; i--) {
+            add(writer, i);
+        }
+        writer.commit();
+        reader = DirectoryReader.open(writer);
+        searcher = new IndexSearcher(reader);
+        writer.close();
+    }
+
+    private static void add(final IndexWriter writer, final int num) throws Exception {
+        final Document doc = new Document();
+        doc.add(new NumericDocValuesField("num", num));
+        writer.addDocument(doc);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        reader.close();
+    }
+
+    @Test
+    public void indexSortTerminatesEarly() throws Exception {
+        assertThat(reader.leaves().size(), is(2));
+        final SortedSearch result = SortedSearch.search(searcher, new MatchAllDocsQuery(),
+                CustomQueryParser.toSort("num<int>"), indexSort, 5);
+        assertThat(result.isEarly(), is(true));
+        assertThat(result.isTotalExact(), is(false));
+        // All of the unsorted segment, but only the first five of the merged one.
+        assertThat(result.getTopDocs().totalHits, is(15));
+        assertThat(result.getTopDocs().scoreDocs.length, is(5));
+        for (int i = 0; i < 5; i++) {
+            assertThat(((FieldDoc) result.getTopDocs().scoreDocs[i]).fields[0], is((Object) (i - 10)));
+        }
+    }
+
+    @Test
+    public void indexSortWithEnoughRowsIsExact() throws Exception {
+        final SortedSearch result = SortedSearch.search(searcher, new MatchAllDocsQuery(),
+                CustomQueryParser.toSort("num<int>"), indexSort, 110);
+        assertThat(result.isEarly(), is(true));
+        assertThat(result.isTotalExact(), is(true));
+        assertThat(result.getTopDocs().totalHits, is(110));
+    }
+
+    @Test
+    public void otherSortIsExact() throws Exception {
+        final SortedSearch result = SortedSearch.search(searcher, new MatchAllDocsQuery(),
+                CustomQueryParser.toSort("\\num<int>"), indexSort, 5);
+        assertThat(result.isEarly(), is(false));
+        assertThat(result.isTotalExact(), is(true));
+        assertThat(result.getTopDocs().totalHits, is(110));
+        for (int i = 0; i < 5; i++) {
+            assertThat(((FieldDoc) result.getTopDocs().scoreDocs[i]).fields[0], is((Object) (99 - i)));
+        }
+    }
+
+    @Test
+    public void unsortedIndexIsExact() throws Exception {
+        final SortedSearch result = SortedSearch.search(searcher, new MatchAllDocsQuery(),
+                CustomQueryParser.toSort("num<int>"), null, 5);
+        assertThat(result.isEarly(), is(false));
+        assertThat(result.isTotalExact(), is(true));
+        assertThat(result.getTopDocs().totalHits, is(110));
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ThrottledMergeSchedulerTest {
+
+    @Before
+    public void setup() {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.maxConcurrentMerges", 1);
+        ini.setProperty("lucene.mergeMBPerSec", 100.0);
+        ini.setProperty("lucene.busySearches", 2);
+        ini.setProperty("lucene.busyMergeMBPerSec", 5.0);
+        ThrottledMergeScheduler.setIni(ini);
+    }
+
+    @After
+    public void teardown() {
+        ThrottledMergeScheduler.setIni(new HierarchicalINIConfiguration());
+    }
+
+    @Test
+    public void backOffUnderSearchLoad() throws Exception {
+        assertThat(ThrottledMergeScheduler.currentMBPerSec(), is(100.0));
+        ThrottledMergeScheduler.searchStarted();
+        ThrottledMergeScheduler.searchStarted();
+        try {
+            assertThat(ThrottledMergeScheduler.currentMBPerSec(), is(5.0));
+        } finally {
+            ThrottledMergeScheduler.searchFinished();
+            ThrottledMergeScheduler.searchFinished();
+        }
+        assertThat(ThrottledMergeScheduler.currentMBPerSec(), is(100.0));
+    }
+
+    @Test
+    public void rateFollowsSearchCount() throws Exception {
+        ThrottledMergeScheduler.searchStarted();
+        try {
+            assertThat(ThrottledMergeScheduler.appliedMBPerSec(), is(100.0));
+            // One search is busy now; the count never passes through the threshold.
+            final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+            ini.setProperty("lucene.mergeMBPerSec", 100.0);
+            ini.setProperty("lucene.busySearches", 1);
+            ini.setProperty("lucene.busyMergeMBPerSec", 5.0);
+            ThrottledMergeScheduler.setIni(ini);
+            ThrottledMergeScheduler.searchStarted();
+            assertThat(ThrottledMergeScheduler.appliedMBPerSec(), is(5.0));
+            ThrottledMergeScheduler.searchFinished();
+        } finally {
+            ThrottledMergeScheduler.searchFinished();
+        }
+        assertThat(ThrottledMergeScheduler.appliedMBPerSec(), is(100.0));
+    }
+
+    @Test
+    public void waitingMergesHoldNoThread() throws Exception {
+        // Merges are paused until the rate is raised again.
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.maxConcurrentMerges", 1);
+        ini.setProperty("lucene.mergeMBPerSec", 0.0);
+        ThrottledMergeScheduler.setIni(ini);
+
+        final ThrottledMergeScheduler first = new ThrottledMergeScheduler();
+        final IndexWriter a = segmentedWriter(new RAMDirectory(), first);
+        final ThrottledMergeScheduler second = new ThrottledMergeScheduler();
+        final IndexWriter b = segmentedWriter(new RAMDirectory(), second);
+        try {
+            a.forceMerge(1, false);
+            awaitStatus("active", 1);
+            b.forceMerge(1, false);
+            awaitStatus("waiting", 1);
+            assertThat(second.mergeThreadCount(), is(0));
+
+            ini.setProperty("lucene.mergeMBPerSec", Double.POSITIVE_INFINITY);
+            ThrottledMergeScheduler.setIni(ini);
+            a.forceMerge(1);
+            b.forceMerge(1);
+            assertThat(segments(a), is(1));
+            assertThat(segments(b), is(1));
+            assertThat(ThrottledMergeScheduler.status().getInt("waiting"), is(0));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void merges() throws Exception {
+        final RAMDirectory dir = new RAMDirectory();
+        final IndexWriter writer = segmentedWriter(dir, new ThrottledMergeScheduler());
+        writer.forceMerge(1);
+        writer.close();
+
+        assertThat(ThrottledMergeScheduler.activeMerges(dir).length(), is(0));
+        assertThat(ThrottledMergeScheduler.status().getInt("active"), is(0));
+        final DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertThat(reader.leaves().size(), is(1));
+            assertThat(reader.numDocs(), is(10));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A writer holding ten single document segments.
+     */
+    private static IndexWriter segmentedWriter(final RAMDirectory dir, final ThrottledMergeScheduler scheduler)
+            throws Exception {
+        final IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setMergeScheduler(scheduler);
+        final IndexWriter writer = new IndexWriter(dir, config);
+        for (int i = 0; i < 10; i++) {
+            final Document doc = new Document();
+            doc.add(Utils.token("_id", "doc" + i, true));
+            writer.addDocument(doc);
+            writer.commit();
+        }
+        return writer;
+    }
+
+    private static int segments(final IndexWriter writer) throws Exception {
+        final DirectoryReader reader = DirectoryReader.open(writer);
+        try {
+            return reader.leaves().size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void awaitStatus(final String key, final int value) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ThrottledMergeScheduler.status().getInt(key) != value && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(ThrottledMergeScheduler.status().getInt(key), is(value));
+    }
+
+}
@@ -16,6 +16,7 @@
 
 package com.github.rnewson.couchdb.lucene;
 
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.lucene.document.Document;
 import org.junit.Before;
 import org.junit.Test;
@@ -54,6 +55,51 @@ public class TikaTest {
         assertThat(doc.get("bar"), containsString("The express mission of the organization"));
     }
 
+    @Test
+    public void testMaxChars() throws IOException {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.maxExtractedChars", 20);
+        Tika.INSTANCE.setIni(ini);
+        try {
+            parse("example.doc", "application/msword", "bar");
+        } finally {
+            Tika.INSTANCE.setIni(new HierarchicalINIConfiguration());
+        }
+        assertThat(doc.get("bar").length(), is(20));
+    }
+
+    @Test
+    public void testTypeAllowlist() throws IOException {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.extractionTypes", "application/pdf, text/*");
+        Tika.INSTANCE.setIni(ini);
+        try {
+            assertThat(Tika.INSTANCE.accepts("application/pdf"), is(true));
+            assertThat(Tika.INSTANCE.accepts("text/plain; charset=UTF-8"), is(true));
+            assertThat(Tika.INSTANCE.accepts("application/msword"), is(false));
+            assertThat(Tika.INSTANCE.accepts(null), is(false));
+            parse("example.doc", "application/msword", "bar");
+        } finally {
+            Tika.INSTANCE.setIni(new HierarchicalINIConfiguration());
+        }
+        assertThat(doc.getField("bar"), is(nullValue()));
+    }
+
+    @Test
+    public void testParserAllowlist() throws IOException {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.extractionParsers", "org.apache.tika.parser.rtf.RTFParser");
+        Tika.INSTANCE.setIni(ini);
+        try {
+            parse("example.doc", "application/msword", "bar");
+            parse("paxos-simple.pdf", "application/pdf", "foo");
+        } finally {
+            Tika.INSTANCE.setIni(new HierarchicalINIConfiguration());
+        }
+        assertThat(doc.get("bar"), containsString("The express mission of the organization"));
+        assertThat(doc.get("foo"), is(""));
+    }
+
     private void parse(final String resource, final String type, final String field) throws IOException {
         final InputStream in = getClass().getClassLoader().getResourceAsStream(resource);
         try {
@@ -19,6 +19,8 @@ package com.github.rnewson.couchdb.lucene.couchdb;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import java.util.Collections;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
@@ -53,4 +55,19 @@ public class DesignDocumentTest {
         assertThat(ddoc.getAllViews().size(), is(1));
     }
 
+    @Test
+    public void invalidViewIsSkipped() throws Exception {
+        final JSONObject fulltext = new JSONObject();
+        fulltext.put("good", new JSONObject().put("index", "function(doc) { return null; }"));
+        fulltext.put("bad", new JSONObject().put("index", "function(doc) { return null; }")
+                .put("codec", new JSONObject().put("stored", "fastest")));
+
+        final JSONObject json = new JSONObject();
+        json.put("_id", "_design/hello");
+        json.put("fulltext", fulltext);
+
+        final DesignDocument ddoc = new DesignDocument(json);
+        assertThat(ddoc.getAllViews().keySet(), is(Collections.singleton("good")));
+    }
+
 }
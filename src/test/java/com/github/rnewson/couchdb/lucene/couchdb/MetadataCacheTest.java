@@ -0,0 +1,180 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.couchdb;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class MetadataCacheTest {
+
+    /**
+     * A database whose update sequence and uuid change on every fetch.
+     */
+    private static final class DatabaseServlet extends HttpServlet {
+
+        private final AtomicInteger infos = new AtomicInteger();
+
+        private final AtomicInteger designDocuments = new AtomicInteger();
+
+        private final AtomicInteger uuids = new AtomicInteger();
+
+        @Override
+        protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            final String uri = req.getRequestURI();
+            final JSONObject json = new JSONObject();
+            try {
+                if (uri.endsWith("/_all_docs")) {
+                    designDocuments.incrementAndGet();
+                    json.put("rows", new JSONArray());
+                } else if (uri.contains("_local")) {
+                    uuids.incrementAndGet();
+                    json.put("_id", "_local/lucene");
+                    json.put("uuid", UUID.randomUUID().toString());
+                } else {
+                    json.put("db_name", "db");
+                    json.put("update_seq", Integer.toString(infos.incrementAndGet()));
+                }
+            } catch (final Exception e) {
+                throw new IOException(e);
+            }
+            resp.setContentType("application/json");
+            resp.getWriter().write(json.toString());
+        }
+
+    }
+
+    private final DatabaseServlet servlet = new DatabaseServlet();
+
+    private final MetadataCache cache = new MetadataCache();
+
+    private Server server;
+
+    private CloseableHttpClient client;
+
+    private String url;
+
+    private Database database;
+
+    @Before
+    public void setup() throws Exception {
+        server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+
+        client = HttpClients.createDefault();
+        url = "http://localhost:" + connector.getLocalPort();
+        database = new Database(client, url + "/db");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void cachedWithinTtl() throws Exception {
+        cache.setTtl(1, MINUTES);
+        final MetadataCache.Snapshot snapshot = cache.getSnapshot(database);
+        final UUID uuid = cache.getUuid(database);
+        assertThat(cache.getSnapshot(database), is(snapshot));
+        assertThat(cache.getInfo(database), is(snapshot.getInfo()));
+        assertThat(cache.getUuid(database), is(uuid));
+        assertThat(servlet.infos.get(), is(1));
+        assertThat(servlet.designDocuments.get(), is(1));
+        assertThat(servlet.uuids.get(), is(1));
+    }
+
+    @Test
+    public void staleEntriesAreRefetched() throws Exception {
+        cache.setTtl(50, MILLISECONDS);
+        final MetadataCache.Snapshot snapshot = cache.getSnapshot(database);
+        final UUID uuid = cache.getUuid(database);
+        Thread.sleep(100);
+        final MetadataCache.Snapshot refetched = cache.getSnapshot(database);
+        assertThat(refetched, not(snapshot));
+        assertThat(refetched.getInfo().getUpdateSequence().toString(), is("2"));
+        assertThat(cache.getUuid(database), not(uuid));
+        assertThat(servlet.infos.get(), is(2));
+        assertThat(servlet.designDocuments.get(), is(2));
+        assertThat(servlet.uuids.get(), is(2));
+    }
+
+    @Test
+    public void invalidateForcesRefetch() throws Exception {
+        cache.setTtl(1, MINUTES);
+        final MetadataCache.Snapshot snapshot = cache.getSnapshot(database);
+        final UUID uuid = cache.getUuid(database);
+        cache.invalidate(database);
+        final MetadataCache.Snapshot refetched = cache.getSnapshot(database);
+        assertThat(refetched, not(snapshot));
+        assertThat(refetched.getInfo().getUpdateSequence().toString(), is("2"));
+        assertThat(servlet.designDocuments.get(), is(2));
+        // The uuid is not affected by database changes.
+        assertThat(cache.getUuid(database), is(uuid));
+        assertThat(servlet.uuids.get(), is(1));
+    }
+
+    @Test
+    public void expiredEntriesAreDropped() throws Exception {
+        cache.setTtl(50, MILLISECONDS);
+        cache.getSnapshot(database);
+        cache.getUuid(database);
+        assertThat(cache.size(), is(2));
+        Thread.sleep(100);
+        cache.getUuid(new Database(client, url + "/other"));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void zeroTtlDisablesCaching() throws Exception {
+        cache.setTtl(0, MILLISECONDS);
+        cache.getSnapshot(database);
+        cache.getSnapshot(database);
+        assertThat(servlet.infos.get(), is(2));
+    }
+
+}
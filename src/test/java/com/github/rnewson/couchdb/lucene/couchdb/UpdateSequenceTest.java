@@ -18,11 +18,30 @@ package com.github.rnewson.couchdb.lucene.couchdb;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
 public class UpdateSequenceTest {
 
+    private static final String PACKED = "g1AAAAGbeJzLYWBg4MhgTmEQT8pMT84vTc5wMDQ30jM00zO0BG"
+            + "JjgxygAqZEhiT5____ZyUxMKi1EVSdpAAkk-yhGtRdCWtwAGmIh9lwi7CGBJCGepgN0gQ"
+            + "15LEASYYGIAXUMx-syYlITQsgmvaDneZDpKYDEE33wZpOE6npAUQTJBA6sgABPG9K";
+
+    // The same shards, uncompressed, with the first one a change ahead.
+    private static final String PACKED_NEXT = "g2wAAAAIaANkABdiaWdjb3VjaEAxNzIuMTYuMTk2LjEzMGwAAAACYQBiH____2piAAAmh2gD"
+            + "ZAAXYmlnY291Y2hAMTcyLjE2LjE5Ni4xMzBsAAAAAmIgAAAAYj____9qYgAAJ0VoA2QAF2JpZ2NvdWNoQDE3Mi4xNi4xOTYuMTMwbAAA"
+            + "AAJiQAAAAGJf____amIAACbaaANkABdiaWdjb3VjaEAxNzIuMTYuMTk2LjEzMGwAAAACYmAAAABif____2piAAAnG2gDZAAXYmlnY291"
+            + "Y2hAMTcyLjE2LjE5Ni4xMzBsAAAAAm4EAAAAAIBuBAD___-famIAACdCaANkABdiaWdjb3VjaEAxNzIuMTYuMTk2LjEzMGwAAAACbgQA"
+            + "AAAAoG4EAP___79qYgAAJkxoA2QAF2JpZ2NvdWNoQDE3Mi4xNi4xOTYuMTMwbAAAAAJuBAAAAADAbgQA____32piAAAmy2gDZAAXYmln"
+            + "Y291Y2hAMTcyLjE2LjE5Ni4xMzBsAAAAAm4EAAAAAOBuBAD_____amIAACaIag";
+
     @Test
     public void couchdbSequence() {
         assertThat(UpdateSequence.parseUpdateSequence("1234"), notNullValue());
@@ -47,4 +66,85 @@ public class UpdateSequenceTest {
                                 + "15LEASYYGIAXUMx-syYlITQsgmvaDneZDpKYDEE33wZpOE6npAUQTJBA6sgABPG9K\"]"),
                 notNullValue());
     }
+
+    @Test
+    public void clusteredComparison() {
+        final UpdateSequence seq = UpdateSequence.parseUpdateSequence("79521-" + PACKED);
+        final UpdateSequence next = UpdateSequence.parseUpdateSequence("79522-" + PACKED_NEXT);
+        assertThat(next.isLaterThan(seq), is(true));
+        assertThat(next.isEarlierThan(seq), is(false));
+        assertThat(seq.isEarlierThan(next), is(true));
+        assertThat(seq.isLaterThan(next), is(false));
+        assertThat(seq.isLaterThan(UpdateSequence.parseUpdateSequence("79521-" + PACKED)), is(false));
+        assertThat(seq.isLaterThan(UpdateSequence.START), is(true));
+        // Cached comparison.
+        assertThat(next.isLaterThan(seq), is(true));
+    }
+
+    @Test
+    public void couchdbComparison() {
+        final UpdateSequence seq = UpdateSequence.parseUpdateSequence("10");
+        assertThat(seq.isLaterThan(UpdateSequence.parseUpdateSequence("9")), is(true));
+        assertThat(seq.isEarlierThan(UpdateSequence.parseUpdateSequence("11")), is(true));
+        assertThat(seq.isLaterThan(UpdateSequence.START), is(true));
+    }
+
+    @Test
+    public void comparisonSurvivesFullInternTable() throws Exception {
+        final UpdateSequence seq = clustered(5, "node1", "node2");
+        assertThat(seq.isLaterThan(clustered(4, "node1", "node2")), is(true));
+
+        // Decode enough distinct shard maps to overflow the interned keys.
+        for (int i = 0; i <= 10000; i++) {
+            final UpdateSequence other = clustered(1, "fill" + i);
+            assertThat(other.isLaterThan(clustered(0, "fill" + i)), is(true));
+        }
+
+        final UpdateSequence next = clustered(6, "node1", "node2");
+        assertThat(next.isLaterThan(seq), is(true));
+        assertThat(seq.isEarlierThan(next), is(true));
+        assertThat(next.isEarlierThan(seq), is(false));
+        // Same shards in another order.
+        final UpdateSequence reordered = clustered(6, "node2", "node1");
+        assertThat(reordered.isLaterThan(seq), is(true));
+        assertThat(seq.isEarlierThan(reordered), is(true));
+    }
+
+    /**
+     * A clustered sequence with one shard copy per node, all at seq.
+     */
+    private static UpdateSequence clustered(final int seq, final String... nodes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(131);
+        out.writeByte(108);
+        out.writeInt(nodes.length);
+        for (final String node : nodes) {
+            out.writeByte(104);
+            out.writeByte(3);
+            out.writeByte(100);
+            out.writeShort(node.length());
+            out.write(node.getBytes(StandardCharsets.ISO_8859_1));
+            // [0, 255] as a string of small integers.
+            out.writeByte(107);
+            out.writeShort(2);
+            out.writeByte(0);
+            out.writeByte(255);
+            out.writeByte(98);
+            out.writeInt(seq);
+        }
+        out.writeByte(106);
+        return UpdateSequence.parseUpdateSequence(
+                seq + "-" + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unrecognized() {
+        UpdateSequence.parseUpdateSequence("12-");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptPackedSequence() {
+        UpdateSequence.parseUpdateSequence("1-g1AAAA").isLaterThan(UpdateSequence.parseUpdateSequence("2-g1AAAA"));
+    }
 }
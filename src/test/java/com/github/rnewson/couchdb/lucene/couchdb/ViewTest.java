@@ -19,6 +19,9 @@ package com.github.rnewson.couchdb.lucene.couchdb;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
 public class ViewTest {
 
     @Test(expected = IllegalArgumentException.class)
@@ -26,6 +29,14 @@ public class ViewTest {
         new View(null, new JSONObject("{}"));
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCodec() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        json.put("codec", new JSONObject().put("postings", "NoSuchFormat"));
+        new View(null, json);
+    }
+
     @Test
     public void index() throws Exception {
         final JSONObject json = new JSONObject();
@@ -34,4 +45,44 @@ public class ViewTest {
         new View(null, json);
     }
 
+    @Test
+    public void indexSortChangesDigest() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        final View unsorted = new View(null, json);
+        assertThat(unsorted.getIndexSort(), nullValue());
+        final String digest = unsorted.getDigest();
+
+        final View sorted = new View(null, new JSONObject(json.toString()).put("index_sort", "\\created<date>"));
+        assertThat(sorted.getIndexSort(), is("\\created<date>"));
+        assertThat(sorted.getDigest(), not(digest));
+    }
+
+    @Test
+    public void shardsChangeDigest() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        final View single = new View(null, json);
+        assertThat(single.getShards(), is(1));
+
+        final View one = new View(null, new JSONObject(json.toString()).put("shards", 1));
+        assertThat(one.getDigest(), is(single.getDigest()));
+
+        final View sharded = new View(null, new JSONObject(json.toString()).put("shards", 4));
+        assertThat(sharded.getShards(), is(4));
+        assertThat(sharded.getDigest(), not(single.getDigest()));
+    }
+
+    @Test
+    public void engineChangesDigest() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        final View javascript = new View(null, json);
+        assertThat(javascript.getEngine(), is("javascript"));
+
+        final View other = new View(null, new JSONObject(json.toString()).put("engine", "other"));
+        assertThat(other.getEngine(), is("other"));
+        assertThat(other.getDigest(), not(javascript.getDigest()));
+    }
+
 }
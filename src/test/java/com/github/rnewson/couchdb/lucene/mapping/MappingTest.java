@@ -0,0 +1,128 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.mapping;
+
+import com.github.rnewson.couchdb.lucene.AttachmentExtractor;
+import com.github.rnewson.couchdb.lucene.IndexFunction;
+import com.github.rnewson.couchdb.lucene.IndexFunctionEngines;
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MappingTest {
+
+    @Test
+    public void mappingSelectsEngine() throws Exception {
+        assertThat(view("[{\"path\":\"title\"}]").getEngine(), is("mapping"));
+    }
+
+    @Test
+    public void simpleField() throws Exception {
+        final Document doc = convert("[{\"path\":\"title\", \"store\":\"yes\"}]", "{_id:\"hello\", title:\"world\"}");
+        assertThat(doc.get("title"), is("world"));
+        assertThat(doc.get("_id"), is("hello"));
+    }
+
+    @Test
+    public void nestedPathAndFieldName() throws Exception {
+        final Document doc = convert("[{\"path\":\"author.name\", \"field\":\"author\", \"type\":\"string\", \"store\":\"yes\"}]",
+                "{_id:\"hello\", author:{name:\"bob\"}}");
+        assertThat(doc.get("author"), is("bob"));
+    }
+
+    @Test
+    public void arraysAreExpanded() throws Exception {
+        final Document doc = convert("[{\"path\":\"authors.name\", \"store\":\"yes\"}]",
+                "{_id:\"hello\", authors:[{name:\"bob\"}, {name:\"alice\"}]}");
+        assertThat(doc.getValues("authors.name").length, is(2));
+    }
+
+    @Test
+    public void expandedTypedArrayCanBeIndexed() throws Exception {
+        final Document doc = convert("[{\"path\":\"authors.name\", \"field\":\"author\", \"type\":\"string\", \"store\":\"yes\"}," +
+                        "{\"path\":\"sizes\", \"type\":\"int\"}]",
+                "{_id:\"hello\", authors:[{name:\"bob\"}, {name:\"alice\"}], sizes:[1, 2]}");
+        final IndexWriter writer = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(new StandardAnalyzer()));
+        try {
+            writer.addDocument(doc);
+            try (final DirectoryReader reader = DirectoryReader.open(writer)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                assertThat(searcher.count(new TermQuery(new Term("author", "alice"))), is(1));
+                assertThat(searcher.count(IntPoint.newExactQuery("sizes", 2)), is(1));
+                assertThat(searcher.doc(0).getValues("author").length, is(2));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void arraysAreSkippedWithoutExpand() throws Exception {
+        assertThat(convert("[{\"path\":\"tags\", \"expand\":false}]", "{_id:\"hello\", tags:[\"a\", \"b\"]}"),
+                is(nullValue()));
+    }
+
+    @Test
+    public void numericType() throws Exception {
+        final Document doc = convert("[{\"path\":\"size\", \"type\":\"int\"}]", "{_id:\"hello\", size:12}");
+        assertThat(doc.getField("size"), is(notNullValue()));
+        assertThat(doc.getField("size").numericValue().intValue(), is(12));
+    }
+
+    @Test
+    public void unmappedDocumentIsNotIndexed() throws Exception {
+        assertThat(convert("[{\"path\":\"title\"}]", "{_id:\"hello\", title:null}"), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badType() throws Exception {
+        IndexFunctionEngines.get("mapping").compile(view("[{\"path\":\"title\", \"type\":\"blob\"}]"));
+    }
+
+    private Document convert(final String mapping, final String doc) throws Exception {
+        final IndexFunction fun = IndexFunctionEngines.get("mapping").compile(view(mapping));
+        final Collection<Document> result = fun.convert(new CouchDocument(new JSONObject(doc)),
+                ViewSettings.getDefaultSettings(), null, new ArrayList<CompletableFuture<AttachmentExtractor.Fields>>());
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    private View view(final String mapping) throws Exception {
+        return new View(null, new JSONObject("{\"mapping\":" + mapping + "}"));
+    }
+
+}
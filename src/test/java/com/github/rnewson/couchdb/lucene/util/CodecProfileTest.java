@@ -0,0 +1,78 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.util;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CodecProfileTest {
+
+    @Test
+    public void defaults() throws Exception {
+        final JSONObject json = CodecProfile.fromSpec(null).toJSON();
+        assertThat(json.getString("stored"), is("best_speed"));
+        assertThat(json.getString("postings"), is("Lucene50"));
+        assertThat(json.getString("docvalues"), is("Lucene54"));
+    }
+
+    @Test
+    public void bestCompression() throws Exception {
+        final CodecProfile profile = CodecProfile.fromSpec(new JSONObject("{\"stored\":\"best_compression\"}"));
+        assertThat(profile.toJSON().getString("stored"), is("best_compression"));
+
+        final RAMDirectory dir = new RAMDirectory();
+        final IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setCodec(profile.toCodec());
+        final IndexWriter writer = new IndexWriter(dir, config);
+        final Document doc = new Document();
+        doc.add(Utils.token("_id", "foo", true));
+        writer.addDocument(doc);
+        writer.close();
+
+        final DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            final SegmentReader segment = (SegmentReader) reader.leaves().get(0).reader();
+            assertThat(segment.getSegmentInfo().info.getAttribute(Lucene50StoredFieldsFormat.MODE_KEY),
+                    is("BEST_COMPRESSION"));
+            assertThat(reader.document(0).get("_id"), is("foo"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStoredMode() throws Exception {
+        CodecProfile.fromSpec(new JSONObject("{\"stored\":\"fastest\"}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPostingsFormat() throws Exception {
+        CodecProfile.fromSpec(new JSONObject("{\"postings\":\"NoSuchFormat\"}")).toCodec();
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.util;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MergeProfileTest {
+
+    @Test
+    public void defaults() throws Exception {
+        final TieredMergePolicy policy = MergeProfile.fromSpec(null, new HierarchicalINIConfiguration())
+                .toMergePolicy();
+        final TieredMergePolicy expected = new TieredMergePolicy();
+        assertThat(policy.getSegmentsPerTier(), is(expected.getSegmentsPerTier()));
+        assertThat(policy.getMaxMergedSegmentMB(), is(expected.getMaxMergedSegmentMB()));
+    }
+
+    @Test
+    public void viewOverridesIni() throws Exception {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.segmentsPerTier", 20.0);
+        ini.setProperty("lucene.maxMergeAtOnce", 20);
+
+        final TieredMergePolicy policy = MergeProfile.fromSpec(
+                new JSONObject("{\"segments_per_tier\":5}"), ini).toMergePolicy();
+        assertThat(policy.getSegmentsPerTier(), is(5.0));
+        assertThat(policy.getMaxMergeAtOnce(), is(20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outOfRange() throws Exception {
+        MergeProfile.fromSpec(new JSONObject("{\"max_merge_at_once\":1}"), new HierarchicalINIConfiguration())
+                .toMergePolicy();
+    }
+
+}